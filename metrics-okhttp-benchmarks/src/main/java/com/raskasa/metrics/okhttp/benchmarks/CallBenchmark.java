@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import javax.net.ServerSocketFactory;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures complete calls, end to end, against a local {@link MockWebServer}. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CallBenchmark {
+  @Param({"RAW", "INSTRUMENTED"})
+  Client client;
+
+  MockWebServer server;
+  OkHttpClient okHttpClient;
+  Request request;
+
+  @Setup
+  public void setUp() throws IOException {
+    server = new MockWebServer();
+    server.setServerSocketFactory(new NoDelayServerSocketFactory());
+    server.setDispatcher(
+        new Dispatcher() {
+          @Override
+          public MockResponse dispatch(RecordedRequest request) {
+            return new MockResponse().setBody("ok");
+          }
+        });
+    server.start();
+
+    // Keep a connection per benchmark thread alive so every call after warmup reuses one.
+    int threads = Runtime.getRuntime().availableProcessors();
+    OkHttpClient rawClient =
+        new OkHttpClient.Builder()
+            .connectionPool(new ConnectionPool(threads, 5, TimeUnit.MINUTES))
+            .build();
+    okHttpClient = client.create(new MetricRegistry(), rawClient);
+    request = new Request.Builder().url(server.url("/")).build();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    okHttpClient.dispatcher().executorService().shutdown();
+    okHttpClient.connectionPool().evictAll();
+    server.shutdown();
+  }
+
+  /**
+   * Disables Nagle's algorithm on the server's connections. MockWebServer writes the response
+   * headers and body separately, which on loopback otherwise waits on a delayed ACK and stalls
+   * every call by tens of milliseconds, hiding the cost being measured.
+   */
+  static final class NoDelayServerSocketFactory extends ServerSocketFactory {
+    @Override
+    public ServerSocket createServerSocket() throws IOException {
+      return new ServerSocket() {
+        @Override
+        public Socket accept() throws IOException {
+          Socket socket = super.accept();
+          socket.setTcpNoDelay(true);
+          return socket;
+        }
+      };
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+      return createServerSocket(port, 50, null);
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+      return createServerSocket(port, backlog, null);
+    }
+
+    /** Binds like {@link ServerSocketFactory#getDefault()}'s sockets do. */
+    @Override
+    public ServerSocket createServerSocket(int port, int backlog, InetAddress ifAddress)
+        throws IOException {
+      ServerSocket serverSocket = createServerSocket();
+      serverSocket.bind(new InetSocketAddress(ifAddress, port), backlog);
+      return serverSocket;
+    }
+  }
+
+  @Benchmark
+  public String execute() throws IOException {
+    try (Response response = okHttpClient.newCall(request).execute()) {
+      return response.body().string();
+    }
+  }
+}
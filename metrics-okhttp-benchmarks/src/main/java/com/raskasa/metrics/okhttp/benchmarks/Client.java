@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import com.raskasa.metrics.okhttp.InstrumentationLevel;
+import com.raskasa.metrics.okhttp.InstrumentationLevels;
+import com.raskasa.metrics.okhttp.InstrumentedOkHttpClients;
+import okhttp3.OkHttpClient;
+
+/** The client under test, either as configured by the user or instrumented by this library. */
+public enum Client {
+  RAW {
+    @Override
+    OkHttpClient create(MetricRegistry registry, OkHttpClient rawClient) {
+      return rawClient;
+    }
+  },
+  /** Instrumented, with every family of metrics switched off. */
+  OFF {
+    @Override
+    OkHttpClient create(MetricRegistry registry, OkHttpClient rawClient) {
+      return InstrumentedOkHttpClients.builder(registry)
+          .client(rawClient)
+          .levels(new InstrumentationLevels(InstrumentationLevel.OFF))
+          .build();
+    }
+  },
+  /** Instrumented, but only counting events. */
+  BASIC {
+    @Override
+    OkHttpClient create(MetricRegistry registry, OkHttpClient rawClient) {
+      return InstrumentedOkHttpClients.builder(registry)
+          .client(rawClient)
+          .levels(new InstrumentationLevels(InstrumentationLevel.BASIC))
+          .build();
+    }
+  },
+  INSTRUMENTED {
+    @Override
+    OkHttpClient create(MetricRegistry registry, OkHttpClient rawClient) {
+      return InstrumentedOkHttpClients.create(registry, rawClient);
+    }
+  },
+  /** Instrumented, but only records durations and sizes for one call in a hundred. */
+  SAMPLED {
+    @Override
+    OkHttpClient create(MetricRegistry registry, OkHttpClient rawClient) {
+      return InstrumentedOkHttpClients.builder(registry).client(rawClient).sampleRate(0.01).build();
+    }
+  };
+
+  abstract OkHttpClient create(MetricRegistry registry, OkHttpClient rawClient);
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import com.raskasa.metrics.okhttp.InstrumentedOkHttpClients;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures deriving a client from an instrumented one, as is done per request to change a timeout,
+ * both on its own and when the derived client is passed to {@link InstrumentedOkHttpClients} again.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DerivedClientBenchmark {
+  MetricRegistry registry;
+  OkHttpClient parent;
+
+  @Setup
+  public void setUp() {
+    registry = new MetricRegistry();
+    parent = InstrumentedOkHttpClients.create(registry, new OkHttpClient(), "parent");
+  }
+
+  @Benchmark
+  public OkHttpClient derive() {
+    return parent.newBuilder().readTimeout(1, TimeUnit.SECONDS).build();
+  }
+
+  @Benchmark
+  public OkHttpClient deriveAndWrap() {
+    return InstrumentedOkHttpClients.create(
+        registry, parent.newBuilder().readTimeout(1, TimeUnit.SECONDS).build(), "parent");
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of creating a listener for a call and of each {@link EventListener} callback.
+ *
+ * <p>The raw client's listener is {@link EventListener#NONE}, so its results are the floor that the
+ * instrumented listener is compared against. Every thread gets its own listener, as it would for
+ * its own call, while all of them record into the same client's metrics.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EventListenerBenchmark {
+  private static final List<InetAddress> ADDRESSES =
+      Collections.singletonList(InetAddress.getLoopbackAddress());
+  private static final IOException FAILURE = new IOException("benchmark");
+
+  @Param({"RAW", "OFF", "BASIC", "SAMPLED", "INSTRUMENTED"})
+  Client client;
+
+  EventListener.Factory factory;
+  Call call;
+
+  @Setup
+  public void setUp() {
+    OkHttpClient okHttpClient = client.create(new MetricRegistry(), new OkHttpClient());
+    factory = okHttpClient.eventListenerFactory();
+    call = okHttpClient.newCall(Fixtures.REQUEST);
+  }
+
+  @State(Scope.Thread)
+  public static class Listener {
+    EventListener listener;
+    Connection connection;
+
+    @Setup
+    public void setUp(EventListenerBenchmark benchmark) {
+      listener = benchmark.factory.create(benchmark.call);
+      connection = new Fixtures.StubConnection();
+    }
+  }
+
+  @Benchmark
+  public EventListener create() {
+    return factory.create(call);
+  }
+
+  @Benchmark
+  public void callStartEnd(Listener state) {
+    state.listener.callStart(call);
+    state.listener.callEnd(call);
+  }
+
+  @Benchmark
+  public void callStartFailed(Listener state) {
+    state.listener.callStart(call);
+    state.listener.callFailed(call, FAILURE);
+  }
+
+  @Benchmark
+  public void dnsStartEnd(Listener state) {
+    state.listener.dnsStart(call, "localhost");
+    state.listener.dnsEnd(call, "localhost", ADDRESSES);
+  }
+
+  @Benchmark
+  public void connectStartEnd(Listener state) {
+    state.listener.connectStart(call, Fixtures.ADDRESS, Proxy.NO_PROXY);
+    state.listener.connectEnd(call, Fixtures.ADDRESS, Proxy.NO_PROXY, Protocol.HTTP_1_1);
+  }
+
+  @Benchmark
+  public void connectStartFailed(Listener state) {
+    state.listener.connectStart(call, Fixtures.ADDRESS, Proxy.NO_PROXY);
+    state.listener.connectFailed(call, Fixtures.ADDRESS, Proxy.NO_PROXY, null, FAILURE);
+  }
+
+  @Benchmark
+  public void secureConnectStartEnd(Listener state) {
+    state.listener.secureConnectStart(call);
+    state.listener.secureConnectEnd(call, null);
+  }
+
+  @Benchmark
+  public void connectionAcquiredReleased(Listener state) {
+    state.listener.connectionAcquired(call, state.connection);
+    state.listener.connectionReleased(call, state.connection);
+  }
+
+  @Benchmark
+  public void requestHeadersStartEnd(Listener state) {
+    state.listener.requestHeadersStart(call);
+    state.listener.requestHeadersEnd(call, Fixtures.REQUEST);
+  }
+
+  @Benchmark
+  public void requestBodyStartEnd(Listener state) {
+    state.listener.requestBodyStart(call);
+    state.listener.requestBodyEnd(call, 1024L);
+  }
+
+  @Benchmark
+  public void responseHeadersStartEnd(Listener state) {
+    state.listener.responseHeadersStart(call);
+    state.listener.responseHeadersEnd(call, Fixtures.RESPONSE);
+  }
+
+  @Benchmark
+  public void responseBodyStartEnd(Listener state) {
+    state.listener.responseBodyStart(call);
+    state.listener.responseBodyEnd(call, 1024L);
+  }
+}
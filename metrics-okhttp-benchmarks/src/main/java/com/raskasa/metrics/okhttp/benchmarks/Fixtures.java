@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp.benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import javax.net.SocketFactory;
+import okhttp3.Address;
+import okhttp3.Authenticator;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionSpec;
+import okhttp3.Dns;
+import okhttp3.Handshake;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.Route;
+
+/** Shared objects that the benchmarks hand to OkHttp's extension points. */
+final class Fixtures {
+  static final Request REQUEST = new Request.Builder().url("http://localhost/").build();
+
+  static final Response RESPONSE =
+      new Response.Builder()
+          .request(REQUEST)
+          .protocol(Protocol.HTTP_1_1)
+          .code(200)
+          .message("OK")
+          .body(ResponseBody.create(MediaType.get("text/plain"), "ok"))
+          .build();
+
+  static final InetSocketAddress ADDRESS = InetSocketAddress.createUnresolved("localhost", 80);
+
+  /** A route to {@link #ADDRESS}, with the defaults of a plain {@code OkHttpClient}. */
+  static final Route ROUTE =
+      new Route(
+          new Address(
+              ADDRESS.getHostString(),
+              ADDRESS.getPort(),
+              Dns.SYSTEM,
+              SocketFactory.getDefault(),
+              null,
+              null,
+              null,
+              Authenticator.NONE,
+              null,
+              Collections.singletonList(Protocol.HTTP_1_1),
+              Collections.singletonList(ConnectionSpec.CLEARTEXT),
+              ProxySelector.getDefault()),
+          Proxy.NO_PROXY,
+          ADDRESS);
+
+  /**
+   * A connection that is never used for I/O; listeners only ever pass it along. Its socket is never
+   * connected, so it's neither open nor closed.
+   */
+  static final class StubConnection implements Connection {
+    private final Socket socket = new Socket();
+
+    @Override
+    public Route route() {
+      return ROUTE;
+    }
+
+    @Override
+    public Socket socket() {
+      return socket;
+    }
+
+    @Override
+    public Handshake handshake() {
+      return null;
+    }
+
+    @Override
+    public Protocol protocol() {
+      return Protocol.HTTP_1_1;
+    }
+  }
+
+  /** A chain that answers every request with {@link #RESPONSE} without touching the network. */
+  static final class StubChain implements Interceptor.Chain {
+    private final Call call;
+
+    StubChain(Call call) {
+      this.call = call;
+    }
+
+    @Override
+    public Request request() {
+      return REQUEST;
+    }
+
+    @Override
+    public Response proceed(Request request) throws IOException {
+      return RESPONSE;
+    }
+
+    @Override
+    public Connection connection() {
+      return null;
+    }
+
+    @Override
+    public Call call() {
+      return call;
+    }
+
+    @Override
+    public int connectTimeoutMillis() {
+      return 10_000;
+    }
+
+    @Override
+    public Interceptor.Chain withConnectTimeout(int timeout, TimeUnit unit) {
+      return this;
+    }
+
+    @Override
+    public int readTimeoutMillis() {
+      return 10_000;
+    }
+
+    @Override
+    public Interceptor.Chain withReadTimeout(int timeout, TimeUnit unit) {
+      return this;
+    }
+
+    @Override
+    public int writeTimeoutMillis() {
+      return 10_000;
+    }
+
+    @Override
+    public Interceptor.Chain withWriteTimeout(int timeout, TimeUnit unit) {
+      return this;
+    }
+  }
+
+  private Fixtures() {
+    // No instances.
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of the last network or application interceptor installed on a client, against a
+ * chain that answers immediately. The raw client has none, so it is measured with a pass-through
+ * interceptor.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InterceptorBenchmark {
+  @Param({"RAW", "OFF", "BASIC", "INSTRUMENTED"})
+  Client client;
+
+  @Param({"NETWORK", "APPLICATION"})
+  String interceptors;
+
+  Interceptor interceptor;
+  Interceptor.Chain chain;
+
+  @Setup
+  public void setUp() {
+    OkHttpClient okHttpClient = client.create(new MetricRegistry(), new OkHttpClient());
+    List<Interceptor> installed =
+        interceptors.equals("NETWORK")
+            ? okHttpClient.networkInterceptors()
+            : okHttpClient.interceptors();
+    interceptor =
+        installed.isEmpty()
+            ? chain -> chain.proceed(chain.request())
+            : installed.get(installed.size() - 1);
+    chain = new Fixtures.StubChain(okHttpClient.newCall(Fixtures.REQUEST));
+  }
+
+  @Benchmark
+  public Response intercept() throws IOException {
+    return interceptor.intercept(chain);
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread count, doubling from 1 up to the number of available
+ * processors, with the GC profiler attached so allocation rates are reported alongside latency.
+ *
+ * <p>Accepts the standard JMH command line options. If a thread count is given with {@code -t}, the
+ * benchmarks are run once with that thread count instead.
+ */
+public final class Main {
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    if (commandLine.getThreads().hasValue()) {
+      new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build())
+          .run();
+      return;
+    }
+
+    int maxThreads = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+      new Runner(
+              new OptionsBuilder()
+                  .parent(commandLine)
+                  .threads(threads)
+                  .addProfiler(GCProfiler.class)
+                  .build())
+          .run();
+      if (threads == maxThreads) break;
+    }
+  }
+
+  private Main() {
+    // No instances.
+  }
+}
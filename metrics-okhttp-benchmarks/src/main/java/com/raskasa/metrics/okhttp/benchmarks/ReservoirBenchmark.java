@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp.benchmarks;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.LockFreeExponentiallyDecayingReservoir;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.SlidingTimeWindowArrayReservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.raskasa.metrics.okhttp.StripedHistogramReservoir;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how a single timer, shared by every benchmark thread like a client's {@code
+ * calls-duration}, holds up under concurrent updates with each kind of reservoir.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReservoirBenchmark {
+  public enum Kind {
+    EXPONENTIALLY_DECAYING {
+      @Override
+      Reservoir create() {
+        return new ExponentiallyDecayingReservoir();
+      }
+    },
+    LOCK_FREE_EXPONENTIALLY_DECAYING {
+      @Override
+      Reservoir create() {
+        return LockFreeExponentiallyDecayingReservoir.builder().build();
+      }
+    },
+    SLIDING_TIME_WINDOW_ARRAY {
+      @Override
+      Reservoir create() {
+        return new SlidingTimeWindowArrayReservoir(1, TimeUnit.MINUTES);
+      }
+    },
+    STRIPED_HISTOGRAM {
+      @Override
+      Reservoir create() {
+        return new StripedHistogramReservoir();
+      }
+    };
+
+    abstract Reservoir create();
+  }
+
+  @Param({
+    "EXPONENTIALLY_DECAYING",
+    "LOCK_FREE_EXPONENTIALLY_DECAYING",
+    "SLIDING_TIME_WINDOW_ARRAY",
+    "STRIPED_HISTOGRAM"
+  })
+  Kind reservoir;
+
+  Timer timer;
+
+  @Setup
+  public void setUp() {
+    timer = new Timer(reservoir.create());
+    for (int i = 0; i < 100_000; i++) {
+      update();
+    }
+  }
+
+  /** Records call durations between 100µs and 100ms. */
+  @Benchmark
+  public void update() {
+    timer.update(ThreadLocalRandom.current().nextLong(100_000, 100_000_000), TimeUnit.NANOSECONDS);
+  }
+
+  /** What a reporter pays to read the percentiles of a timer that has recorded many calls. */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public double snapshot() {
+    Snapshot snapshot = timer.getSnapshot();
+    return snapshot.get99thPercentile();
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link Timer} that also counts each duration in one of a fixed set of {@link LatencyBuckets}.
+ *
+ * <p>A reservoir's percentiles can't be combined across processes, but bucket counts can: summing
+ * each bucket's count across every process gives the fleet's distribution. Counting a duration
+ * takes a binary search over the bounds and one {@link LongAdder} increment, which neither locks
+ * nor allocates, and the counts take constant memory.
+ *
+ * <p>The buckets are read through {@link #bucket(int) counters} that are cumulative, like
+ * Prometheus' {@code le} buckets: each counts the durations up to its bound, so the last counts
+ * every duration.
+ */
+final class BucketedTimer extends Timer {
+  private final Timer delegate;
+  private final LatencyBuckets buckets;
+  /** The durations in each bucket alone, which are summed when the buckets are read. */
+  private final LongAdder[] counts;
+
+  BucketedTimer(@Nonnull Timer delegate, @Nonnull LatencyBuckets buckets) {
+    // The superclass's reservoir and meter go unused, so keep them small.
+    super(new SlidingWindowReservoir(1));
+    this.delegate = delegate;
+    this.buckets = buckets;
+    this.counts = new LongAdder[buckets.size()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = new LongAdder();
+    }
+  }
+
+  LatencyBuckets buckets() {
+    return buckets;
+  }
+
+  /** Returns a counter of the durations up to the {@code index}th bucket's bound. */
+  Counter bucket(int index) {
+    return new Counter() {
+      @Override
+      public long getCount() {
+        long count = 0L;
+        for (int i = 0; i <= index; i++) {
+          count += counts[i].sum();
+        }
+        return count;
+      }
+    };
+  }
+
+  @Override
+  public void update(long duration, TimeUnit unit) {
+    long nanos = unit.toNanos(duration);
+    if (nanos < 0) return;
+    delegate.update(nanos, TimeUnit.NANOSECONDS);
+    counts[buckets.indexOf(nanos)].increment();
+  }
+
+  @Override
+  public void update(Duration duration) {
+    update(duration.toNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public <T> T time(Callable<T> event) throws Exception {
+    long start = System.nanoTime();
+    try {
+      return event.call();
+    } finally {
+      update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  @Override
+  public <T> T timeSupplier(Supplier<T> event) {
+    long start = System.nanoTime();
+    try {
+      return event.get();
+    } finally {
+      update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  @Override
+  public void time(Runnable event) {
+    long start = System.nanoTime();
+    try {
+      event.run();
+    } finally {
+      update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  @Override
+  public long getCount() {
+    return delegate.getCount();
+  }
+
+  @Override
+  public double getFifteenMinuteRate() {
+    return delegate.getFifteenMinuteRate();
+  }
+
+  @Override
+  public double getFiveMinuteRate() {
+    return delegate.getFiveMinuteRate();
+  }
+
+  @Override
+  public double getMeanRate() {
+    return delegate.getMeanRate();
+  }
+
+  @Override
+  public double getOneMinuteRate() {
+    return delegate.getOneMinuteRate();
+  }
+
+  @Override
+  public Snapshot getSnapshot() {
+    return delegate.getSnapshot();
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * An application {@link Interceptor} that times calls by how the client's {@link okhttp3.Cache}
+ * served them: entirely from the cache, from the cache once the server confirmed it's still valid,
+ * or from the network. It also meters the response bytes the cache served, which are bytes the
+ * network didn't have to carry.
+ *
+ * <p>Calls are timed until their response is available, which includes any redirects or retries,
+ * but not reading the response body. Bytes are counted as stored in the cache, from their {@code
+ * Content-Length}, so responses stored without one aren't counted. The metrics are registered once
+ * the family is first recorded, so a client built with it off can still have it turned on later.
+ */
+final class CacheOutcomeInterceptor implements Interceptor {
+  private final MetricRegistrar registrar;
+  private final InstrumentationLevels levels;
+  private final String name;
+  private volatile Metrics metrics;
+
+  CacheOutcomeInterceptor(MetricRegistrar registrar, InstrumentationLevels levels, String name) {
+    this.registrar = registrar;
+    this.levels = levels;
+    this.name = name;
+    if (levels.get(MetricFamily.CACHE) != InstrumentationLevel.OFF) {
+      metrics();
+    }
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    InstrumentationLevel level = levels.get(MetricFamily.CACHE);
+    if (level == InstrumentationLevel.OFF) {
+      return chain.proceed(chain.request());
+    }
+    Metrics metrics = metrics();
+    boolean timed = level.atLeast(InstrumentationLevel.PHASES);
+    long start = timed ? System.nanoTime() : 0L;
+    Response response = chain.proceed(chain.request());
+
+    Response cacheResponse = response.cacheResponse();
+    Response networkResponse = response.networkResponse();
+    Timer timer;
+    if (cacheResponse != null && networkResponse == null) {
+      timer = metrics.hitDuration;
+      metrics.countBytesServed(cacheResponse);
+    } else if (cacheResponse != null
+        && networkResponse.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+      timer = metrics.conditionalHitDuration;
+      metrics.countBytesServed(cacheResponse);
+    } else {
+      timer = metrics.missDuration;
+    }
+    if (timed) {
+      timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+    return response;
+  }
+
+  private Metrics metrics() {
+    Metrics result = metrics;
+    if (result == null) {
+      synchronized (this) {
+        result = metrics;
+        if (result == null) {
+          result = new Metrics(registrar, name);
+          metrics = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  private static final class Metrics {
+    final Timer hitDuration;
+    final Timer conditionalHitDuration;
+    final Timer missDuration;
+    final Meter bytesServed;
+
+    Metrics(MetricRegistrar registrar, String name) {
+      this.hitDuration = registrar.timer(MetricRegistry.name(name, "cache-hit-duration"));
+      this.conditionalHitDuration =
+          registrar.timer(MetricRegistry.name(name, "cache-conditional-hit-duration"));
+      this.missDuration = registrar.timer(MetricRegistry.name(name, "cache-miss-duration"));
+      this.bytesServed = registrar.meter(MetricRegistry.name(name, "cache-bytes-served"));
+    }
+
+    void countBytesServed(Response cacheResponse) {
+      String contentLength = cacheResponse.header("Content-Length");
+      if (contentLength == null) return;
+      try {
+        bytesServed.mark(Long.parseLong(contentLength));
+      } catch (NumberFormatException ignored) {
+        // The server sent a malformed length, which the cache stored as is.
+      }
+    }
+  }
+}
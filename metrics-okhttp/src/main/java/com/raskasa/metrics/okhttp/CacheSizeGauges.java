@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.RatioGauge;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gauges of a {@link Cache}'s size that are read in the background.
+ *
+ * <p>Reading the size can initialize the cache, which reads its journal from disk, and waits for
+ * the cache's lock, which is held while other threads write to it. Doing that on a reporter's
+ * thread would delay every other metric it reports, so the sizes are read on a shared daemon thread
+ * instead, and the gauges return the last values read. {@code cache-size-age} reports how many
+ * milliseconds ago that was, which keeps growing if reading fails.
+ *
+ * <p>The cache is only weakly held, so that a client that's discarded without being unregistered
+ * doesn't keep its cache, nor a task reading it, alive. Once the cache is collected, the sizes stop
+ * being read and {@code cache-size-age} keeps growing.
+ */
+final class CacheSizeGauges implements Runnable {
+  private static final Logger LOG = LoggerFactory.getLogger(CacheSizeGauges.class);
+
+  private final WeakReference<Cache> cache;
+  private volatile long currentSize = -1L;
+  private volatile long maxSize;
+  /** When the sizes were last read, in {@link System#nanoTime()}, or 0 before the first read. */
+  private volatile long refreshedAtNanos;
+
+  private ScheduledFuture<?> refreshes;
+
+  CacheSizeGauges(Cache cache) {
+    this.cache = new WeakReference<>(cache);
+    // Unlike its current size, the cache's maximum size doesn't need reading from disk.
+    this.maxSize = cache.maxSize();
+  }
+
+  /** Reads the sizes now, and then every {@code intervalNanos} until {@link #stop stopped}. */
+  synchronized void start(long intervalNanos) {
+    if (refreshes == null) {
+      refreshes =
+          Scheduler.INSTANCE.scheduleWithFixedDelay(this, 0L, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  synchronized void stop() {
+    if (refreshes != null) {
+      refreshes.cancel(false);
+    }
+  }
+
+  @Override
+  public void run() {
+    Cache cache = this.cache.get();
+    if (cache == null) {
+      stop();
+      return;
+    }
+    try {
+      long size = cache.size();
+      maxSize = cache.maxSize();
+      currentSize = size;
+      refreshedAtNanos = Math.max(System.nanoTime(), 1L);
+    } catch (IOException | RuntimeException ex) {
+      LOG.error(ex.getMessage(), ex);
+    }
+  }
+
+  Gauge<Long> currentSize() {
+    return () -> currentSize;
+  }
+
+  Gauge<Long> maxSize() {
+    return () -> maxSize;
+  }
+
+  Gauge<Double> ratio() {
+    return new RatioGauge() {
+      @Override
+      protected Ratio getRatio() {
+        long current = currentSize;
+        return current < 0L ? Ratio.of(Double.NaN, 1) : Ratio.of(current, maxSize);
+      }
+    };
+  }
+
+  Gauge<Long> age() {
+    return () -> {
+      long refreshedAt = refreshedAtNanos;
+      return refreshedAt == 0L
+          ? -1L
+          : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - refreshedAt);
+    };
+  }
+
+  /** The thread every client's cache sizes are read on, started when first needed. */
+  private static final class Scheduler {
+    static final ScheduledExecutorService INSTANCE = create();
+
+    private static ScheduledExecutorService create() {
+      ScheduledThreadPoolExecutor executor =
+          new ScheduledThreadPoolExecutor(
+              1,
+              runnable -> {
+                Thread thread = new Thread(runnable, "metrics-okhttp-cache-size");
+                thread.setDaemon(true);
+                return thread;
+              });
+      executor.setRemoveOnCancelPolicy(true);
+      return executor;
+    }
+  }
+}
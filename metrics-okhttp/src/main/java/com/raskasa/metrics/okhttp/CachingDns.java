@@ -0,0 +1,277 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import okhttp3.Dns;
+
+/**
+ * A {@link Dns} that caches the addresses another {@code Dns} resolves, for {@code ttlNanos}, and
+ * the hosts it fails to resolve, for {@code negativeTtlNanos}.
+ *
+ * <p>At most {@code maxHosts} hosts are cached at once. When a new host is looked up and the limit
+ * is reached, a host that wasn't looked up recently is evicted, as picked by an {@link
+ * EvictionRing}. Looking up a cached host doesn't lock or allocate.
+ *
+ * <p>Once three quarters of a host's TTL have passed, the next lookup refreshes it in the
+ * background, so that hosts in use are rarely resolved on a caller's thread. Until the refresh
+ * completes, lookups are served the cached addresses, even after they expire. Concurrent lookups of
+ * a host that isn't cached share a single resolution.
+ */
+final class CachingDns implements Dns {
+  /** The threads hosts are refreshed on, shared by every client, and started when needed. */
+  private static final ThreadPoolExecutor REFRESHER = createRefresher();
+
+  /** Orders entries from the least recently used. */
+  private static final Comparator<Entry> LEAST_RECENTLY_USED =
+      (a, b) -> Long.signum(a.lastUsedNanos - b.lastUsedNanos);
+
+  private final Dns delegate;
+  private final Clock clock;
+  private final long ttlNanos;
+  private final long negativeTtlNanos;
+
+  private final Meter hits;
+  private final Meter misses;
+  private final Meter refreshes;
+  private final Meter staleServed;
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  /** Every entry. Guarded by this. */
+  private final EvictionRing<Entry> ring;
+
+  CachingDns(
+      @Nonnull Dns delegate,
+      @Nonnull MetricRegistrar registrar,
+      @Nonnull String name,
+      int maxHosts,
+      long ttlNanos,
+      long negativeTtlNanos) {
+    this(delegate, registrar, name, maxHosts, ttlNanos, negativeTtlNanos, Clock.defaultClock());
+  }
+
+  CachingDns(
+      @Nonnull Dns delegate,
+      @Nonnull MetricRegistrar registrar,
+      @Nonnull String name,
+      int maxHosts,
+      long ttlNanos,
+      long negativeTtlNanos,
+      @Nonnull Clock clock) {
+    this.delegate = delegate;
+    this.clock = clock;
+    this.ring = new EvictionRing<>(maxHosts, LEAST_RECENTLY_USED);
+    this.ttlNanos = ttlNanos;
+    this.negativeTtlNanos = negativeTtlNanos;
+    this.hits = registrar.meter(MetricRegistry.name(name, "dns-cache-hits"));
+    this.misses = registrar.meter(MetricRegistry.name(name, "dns-cache-misses"));
+    this.refreshes = registrar.meter(MetricRegistry.name(name, "dns-cache-refreshes"));
+    this.staleServed = registrar.meter(MetricRegistry.name(name, "dns-cache-stale-served"));
+    registrar.register(MetricRegistry.name(name, "dns-cache-size"), (Gauge<Integer>) entries::size);
+  }
+
+  /** Returns the {@code Dns} this resolves hosts with. */
+  Dns delegate() {
+    return delegate;
+  }
+
+  @Override
+  public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+    if (hostname == null) throw new UnknownHostException("hostname == null");
+    long now = clock.getTick();
+    Entry entry = entries.get(hostname);
+    if (entry == null) {
+      entry = create(hostname, now);
+    }
+    entry.lastUsedNanos = now;
+
+    Resolution resolution = entry.resolution;
+    if (resolution != null) {
+      if (now - resolution.expiresAtNanos < 0) {
+        hits.mark();
+        if (resolution.addresses != null && now - resolution.refreshAtNanos >= 0) {
+          refreshInBackground(entry);
+        }
+        return resolution.addresses(hostname);
+      }
+      if (resolution.addresses != null && entry.resolving != null) {
+        staleServed.mark();
+        return resolution.addresses;
+      }
+    }
+    misses.mark();
+    return resolve(entry).addresses(hostname);
+  }
+
+  /** Resolves {@code entry}'s host on this thread, or waits for the resolution in progress. */
+  private Resolution resolve(Entry entry) {
+    CompletableFuture<Resolution> resolving;
+    boolean inProgress;
+    synchronized (entry) {
+      resolving = entry.resolving;
+      inProgress = resolving != null;
+      if (!inProgress) {
+        resolving = new CompletableFuture<>();
+        entry.resolving = resolving;
+      }
+    }
+    if (!inProgress) return complete(entry, resolving, false);
+    try {
+      return resolving.join();
+    } catch (CompletionException e) {
+      // Throw what the delegate threw, just as the thread resolving the host does.
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw e;
+    }
+  }
+
+  private void refreshInBackground(Entry entry) {
+    CompletableFuture<Resolution> resolving;
+    synchronized (entry) {
+      if (entry.resolving != null) return;
+      resolving = new CompletableFuture<>();
+      entry.resolving = resolving;
+    }
+    try {
+      REFRESHER.execute(() -> complete(entry, resolving, true));
+      refreshes.mark();
+    } catch (RejectedExecutionException e) {
+      // Every refresh thread is busy, so a later lookup tries again.
+      synchronized (entry) {
+        entry.resolving = null;
+      }
+      resolving.complete(entry.resolution);
+    }
+  }
+
+  /**
+   * Resolves {@code entry}'s host and completes {@code resolving} with the outcome. A refresh that
+   * fails keeps the addresses resolved before, until they expire.
+   */
+  private Resolution complete(
+      Entry entry, CompletableFuture<Resolution> resolving, boolean refreshing) {
+    Resolution resolution;
+    try {
+      resolution = resolve(entry.hostname);
+      if (refreshing && resolution.addresses == null && entry.resolution != null) {
+        resolution = entry.resolution;
+      } else {
+        entry.resolution = resolution;
+      }
+    } catch (RuntimeException | Error e) {
+      synchronized (entry) {
+        entry.resolving = null;
+      }
+      resolving.completeExceptionally(e);
+      throw e;
+    }
+    synchronized (entry) {
+      entry.resolving = null;
+    }
+    resolving.complete(resolution);
+    return resolution;
+  }
+
+  private Resolution resolve(String hostname) {
+    try {
+      List<InetAddress> addresses = delegate.lookup(hostname);
+      long now = clock.getTick();
+      return new Resolution(addresses, now + ttlNanos, now + ttlNanos / 4 * 3);
+    } catch (UnknownHostException e) {
+      long now = clock.getTick();
+      return new Resolution(null, now + negativeTtlNanos, now + negativeTtlNanos);
+    }
+  }
+
+  private synchronized Entry create(String hostname, long nowNanos) {
+    Entry entry = entries.get(hostname);
+    if (entry != null) return entry;
+    entry = new Entry(hostname);
+    entry.lastUsedNanos = nowNanos;
+    Entry evicted = ring.add(entry);
+    if (evicted != null) {
+      entries.remove(evicted.hostname);
+    }
+    entries.put(hostname, entry);
+    return entry;
+  }
+
+  private static ThreadPoolExecutor createRefresher() {
+    return new ThreadPoolExecutor(
+        0,
+        4,
+        60L,
+        TimeUnit.SECONDS,
+        new SynchronousQueue<>(),
+        runnable -> {
+          Thread thread = new Thread(runnable, "metrics-okhttp-dns-refresh");
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /** A cached host, and its resolution in progress, if any. */
+  private static final class Entry {
+    final String hostname;
+    volatile long lastUsedNanos;
+    /** The latest resolution, or null until the first completes. */
+    @Nullable volatile Resolution resolution;
+    /** Completes when the resolution in progress does. Guarded by this. */
+    @Nullable volatile CompletableFuture<Resolution> resolving;
+
+    Entry(String hostname) {
+      this.hostname = hostname;
+    }
+  }
+
+  /** The addresses a host resolved to, or null if it didn't resolve, and when they expire. */
+  private static final class Resolution {
+    @Nullable final List<InetAddress> addresses;
+    final long expiresAtNanos;
+    final long refreshAtNanos;
+
+    Resolution(@Nullable List<InetAddress> addresses, long expiresAtNanos, long refreshAtNanos) {
+      this.addresses = addresses;
+      this.expiresAtNanos = expiresAtNanos;
+      this.refreshAtNanos = refreshAtNanos;
+    }
+
+    List<InetAddress> addresses(String hostname) throws UnknownHostException {
+      if (addresses == null) throw new UnknownHostException(hostname);
+      return addresses;
+    }
+  }
+}
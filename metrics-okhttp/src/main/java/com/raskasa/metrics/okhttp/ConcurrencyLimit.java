@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A limit on how many calls may be in flight at once, which adapts to the latency of the requests
+ * it lets through.
+ *
+ * <p>The limit follows the gradient between the long-term average latency, taken over the last few
+ * hundred requests, and the short-term average, over the last few. While the short-term average
+ * stays within {@link #TOLERANCE} of the long-term one, the limit grows by a few calls at a time,
+ * but only if calls use at least half of it. Once latency rises beyond that, requests are queueing
+ * somewhere, and the limit shrinks in proportion, by at most half at a time. A request that times
+ * out, or that a server turns away as overloaded, is a drop, and shrinks the limit by a tenth.
+ *
+ * <p>Acquiring and releasing a permit don't lock or allocate. The latency of a sample that arrives
+ * while another is being applied, or while drops are pending, is skipped, so applying one doesn't
+ * lock either. Drops are never skipped: they're counted, and applied together by whichever thread
+ * applies samples next.
+ */
+final class ConcurrencyLimit {
+  static final int MIN_LIMIT = 1;
+
+  /** How much slower than the long-term average latency may get before the limit shrinks. */
+  static final double TOLERANCE = 1.5;
+
+  /** How many calls the limit grows by at a time, before smoothing, while latency is steady. */
+  private static final double QUEUE_SIZE = 4.0;
+
+  /** The share of each new estimate that's taken into the limit. */
+  private static final double SMOOTHING = 0.2;
+
+  /** How much of the limit is kept on a drop. */
+  private static final double BACKOFF = 0.9;
+
+  /** How many samples the short- and long-term averages span, roughly. */
+  private static final int SHORT_WINDOW = 10;
+
+  private static final int LONG_WINDOW = 600;
+
+  private final int maxLimit;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  /** Set while a thread applies samples. */
+  final AtomicBoolean sampling = new AtomicBoolean();
+
+  /** Drops that haven't been applied yet. */
+  private final AtomicInteger pendingDrops = new AtomicInteger();
+
+  private volatile int limit;
+
+  /** The limit before rounding down. Guarded by {@link #sampling}, as are the fields below. */
+  private double estimatedLimit;
+
+  private double shortLatencyNanos;
+  private double longLatencyNanos;
+  private int samples;
+
+  ConcurrencyLimit(int initialLimit, int maxLimit) {
+    if (initialLimit < MIN_LIMIT) {
+      throw new IllegalArgumentException("initialLimit < " + MIN_LIMIT + ": " + initialLimit);
+    }
+    if (maxLimit < initialLimit) {
+      throw new IllegalArgumentException("maxLimit < initialLimit: " + maxLimit);
+    }
+    this.maxLimit = maxLimit;
+    this.limit = initialLimit;
+    this.estimatedLimit = initialLimit;
+  }
+
+  int limit() {
+    return limit;
+  }
+
+  int inFlight() {
+    return inFlight.get();
+  }
+
+  /** Takes a permit and returns true, or returns false if the limit's calls are all in flight. */
+  boolean tryAcquire() {
+    for (int n = inFlight.get(); n < limit; n = inFlight.get()) {
+      if (inFlight.compareAndSet(n, n + 1)) return true;
+    }
+    return false;
+  }
+
+  /** Returns a permit taken by {@link #tryAcquire}. */
+  void release() {
+    inFlight.decrementAndGet();
+  }
+
+  /**
+   * Adjusts the limit to a request that took {@code nanos}, and that was {@code dropped} if it
+   * timed out or the server was overloaded.
+   */
+  void sample(long nanos, boolean dropped) {
+    if (dropped) {
+      pendingDrops.incrementAndGet();
+    }
+    long latency = dropped ? -1L : nanos;
+    while (sampling.compareAndSet(false, true)) {
+      try {
+        apply(latency);
+      } finally {
+        sampling.set(false);
+      }
+      // Drops counted while this thread applied samples would otherwise wait for the next one.
+      if (pendingDrops.get() == 0) return;
+      latency = -1L;
+    }
+  }
+
+  /** Applies the pending drops, if any, or else a latency of {@code nanos}, unless it's -1. */
+  private void apply(long nanos) {
+    int drops = pendingDrops.getAndSet(0);
+    double newLimit;
+    if (drops > 0) {
+      newLimit = estimatedLimit * Math.pow(BACKOFF, drops);
+    } else if (nanos != -1L) {
+      if (samples < LONG_WINDOW) samples++;
+      shortLatencyNanos += (nanos - shortLatencyNanos) / Math.min(samples, SHORT_WINDOW);
+      longLatencyNanos += (nanos - longLatencyNanos) / samples;
+      if (longLatencyNanos > 2.0 * shortLatencyNanos) {
+        // Latency dropped well below what it used to be, so let the long-term average catch up.
+        longLatencyNanos *= 0.95;
+      }
+      double gradient =
+          Math.max(0.5, Math.min(1.0, TOLERANCE * longLatencyNanos / shortLatencyNanos));
+      if (gradient == 1.0 && inFlight.get() < estimatedLimit / 2.0) {
+        // Calls don't use the limit, so nothing says it could be higher.
+        return;
+      }
+      newLimit = gradient == 1.0 ? estimatedLimit + QUEUE_SIZE : estimatedLimit * gradient;
+      newLimit = estimatedLimit * (1.0 - SMOOTHING) + newLimit * SMOOTHING;
+    } else {
+      return;
+    }
+    estimatedLimit = Math.max(MIN_LIMIT, Math.min(maxLimit, newLimit));
+    limit = (int) estimatedLimit;
+  }
+}
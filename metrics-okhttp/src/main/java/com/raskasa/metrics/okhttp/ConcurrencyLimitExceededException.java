@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a call that an instrumented client turned away, without sending it, because the client
+ * already had as many calls in flight as its adaptive concurrency limit allows.
+ *
+ * @see InstrumentedOkHttpClients.Builder#concurrencyLimit(int, int)
+ */
+public final class ConcurrencyLimitExceededException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  ConcurrencyLimitExceededException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Limits how many calls a client has in flight at once, for the whole client or for each host it
+ * calls if {@code maxHosts} is positive, with a {@link ConcurrencyLimit} that adapts to the latency
+ * of the client's network requests.
+ *
+ * <p>The limit is enforced by an application {@link Interceptor}, which turns calls over the limit
+ * away with a {@link ConcurrencyLimitExceededException} before they use a connection, and counts
+ * them in the {@code concurrency-limit-rejected} meter. A call holds its permit until its response
+ * arrives, without the time it spent queued in the dispatcher. The limit learns from the requests
+ * timed by the client's {@link InstrumentedInterceptor}, so responses served by the cache, which
+ * say nothing about the server, don't count.
+ *
+ * <p>Like {@link HostMetrics}, at most {@code maxHosts} hosts are limited at once. When a call is
+ * made to a new host and the limit is reached, a host that wasn't called recently is evicted, as
+ * picked by an {@link EvictionRing} that prefers hosts without calls in flight, and its metrics are
+ * removed from the registry.
+ */
+final class ConcurrencyLimiter {
+  /** Orders hosts without calls in flight first, then from the least recently used. */
+  private static final Comparator<Host> EVICTION_ORDER =
+      (a, b) -> {
+        boolean aIdle = a.limit.inFlight() == 0;
+        boolean bIdle = b.limit.inFlight() == 0;
+        if (aIdle != bIdle) return aIdle ? -1 : 1;
+        return Long.signum(a.lastUsedNanos - b.lastUsedNanos);
+      };
+
+  private final MetricRegistrar registrar;
+  private final String name;
+  private final int initialLimit;
+  private final int maxLimit;
+  private final Meter rejected;
+
+  /** The limit of the whole client, or null if each host has its own. */
+  @Nullable private final Host client;
+
+  private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+  /** Every host, if each has its own limit. Guarded by this. */
+  @Nullable private final EvictionRing<Host> ring;
+
+  ConcurrencyLimiter(
+      @Nonnull MetricRegistrar registrar,
+      @Nonnull String name,
+      int initialLimit,
+      int maxLimit,
+      int maxHosts) {
+    this.registrar = registrar;
+    this.name = name;
+    this.initialLimit = initialLimit;
+    this.maxLimit = maxLimit;
+    this.ring = maxHosts > 0 ? new EvictionRing<>(maxHosts, EVICTION_ORDER) : null;
+    this.rejected = registrar.meter(MetricRegistry.name(name, "concurrency-limit-rejected"));
+    this.client =
+        maxHosts > 0
+            ? null
+            : new Host(null, null, new ConcurrencyLimit(initialLimit, maxLimit), null);
+    if (client != null) {
+      registerGauges(name, client.limit);
+    }
+  }
+
+  Interceptor interceptor() {
+    return new LimitingInterceptor();
+  }
+
+  /**
+   * Adjusts the limit that applies to {@code url} to a network request that took {@code nanos}, and
+   * that was {@code dropped} if it timed out or the server was overloaded. Requests to hosts that
+   * aren't limited, such as one a call was redirected to, are ignored.
+   */
+  void sample(@Nonnull HttpUrl url, long nanos, boolean dropped) {
+    Host host = client != null ? client : hosts.get(url.host());
+    if (host != null) {
+      host.limit.sample(nanos, dropped);
+    }
+  }
+
+  private Host host(HttpUrl url, long nowNanos) {
+    if (client != null) return client;
+    Host host = hosts.get(url.host());
+    if (host == null) {
+      host = create(url.host(), nowNanos);
+    }
+    host.lastUsedNanos = nowNanos;
+    return host;
+  }
+
+  private synchronized Host create(String hostname, long nowNanos) {
+    Host host = hosts.get(hostname);
+    if (host != null) return host;
+
+    String prefix = MetricRegistry.name(name, "hosts", hostname);
+    ConcurrencyLimit limit = new ConcurrencyLimit(initialLimit, maxLimit);
+    host =
+        new Host(
+            hostname,
+            prefix,
+            limit,
+            registrar.meter(MetricRegistry.name(prefix, "concurrency-limit-rejected")));
+    host.lastUsedNanos = nowNanos;
+    Host evicted = ring.add(host);
+    if (evicted != null) {
+      hosts.remove(evicted.hostname);
+      // Calls in flight to the evicted host still release the permits they hold.
+      for (String metric : Host.METRICS) {
+        registrar.remove(MetricRegistry.name(evicted.prefix, metric));
+      }
+    }
+    registerGauges(prefix, limit);
+    hosts.put(hostname, host);
+    return host;
+  }
+
+  private void registerGauges(String prefix, ConcurrencyLimit limit) {
+    registrar.register(
+        MetricRegistry.name(prefix, "concurrency-limit"), (Gauge<Integer>) limit::limit);
+    registrar.register(
+        MetricRegistry.name(prefix, "concurrency-limit-in-flight"),
+        (Gauge<Integer>) limit::inFlight);
+  }
+
+  /** The limit of the whole client, or of one host. */
+  private static final class Host {
+    private static final String[] METRICS = {
+      "concurrency-limit", "concurrency-limit-in-flight", "concurrency-limit-rejected"
+    };
+
+    /** The host, or null for the whole client. */
+    @Nullable final String hostname;
+
+    /** The prefix of the host's metrics, or null for the whole client. */
+    @Nullable final String prefix;
+
+    final ConcurrencyLimit limit;
+    @Nullable final Meter rejected;
+    volatile long lastUsedNanos;
+
+    Host(
+        @Nullable String hostname,
+        @Nullable String prefix,
+        ConcurrencyLimit limit,
+        @Nullable Meter rejected) {
+      this.hostname = hostname;
+      this.prefix = prefix;
+      this.limit = limit;
+      this.rejected = rejected;
+    }
+  }
+
+  final class LimitingInterceptor implements Interceptor {
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+      Request request = chain.request();
+      Host host = host(request.url(), System.nanoTime());
+      if (!host.limit.tryAcquire()) {
+        rejected.mark();
+        if (host.rejected != null) {
+          host.rejected.mark();
+        }
+        throw new ConcurrencyLimitExceededException(
+            "concurrency limit of "
+                + host.limit.limit()
+                + " calls reached"
+                + (host == client ? "" : " for " + request.url().host()));
+      }
+      try {
+        return chain.proceed(request);
+      } finally {
+        host.limit.release();
+      }
+    }
+  }
+}
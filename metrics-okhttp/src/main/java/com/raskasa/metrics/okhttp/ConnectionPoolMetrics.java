@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Protocol;
+
+/**
+ * Records how calls use a client's {@link ConnectionPool}, from the events of the calls themselves,
+ * so that none of it takes the pool's lock.
+ *
+ * <p>OkHttp doesn't say when a pooled connection was created, nor how many calls it has carried, so
+ * this keeps track of each new connection from when it is first acquired. Connections that have
+ * been closed since, such as those the pool evicted, are forgotten every so often, at the latest
+ * when the metrics are next reported, and the number of calls they carried is recorded then.
+ *
+ * <p>A connection counts as in use while at least one call holds it, however many calls an HTTP/2
+ * connection carries at once. Once the most connections are tracked, new HTTP/1 connections are
+ * still counted, since each carries one call at a time, but new HTTP/2 connections aren't.
+ */
+final class ConnectionPoolMetrics {
+  /** The most connections tracked at once. */
+  static final int MAX_TRACKED_CONNECTIONS = 4096;
+
+  private final InstrumentationLevels levels;
+  private final Counter inUse;
+  private final Timer waitDuration;
+  private final Timer ageAtReuse;
+  private final Histogram callsPerConnection;
+
+  private final Map<Connection, ConnectionUse> connections = new ConcurrentHashMap<>();
+
+  /** How many new connections have been acquired. */
+  private final AtomicLong created = new AtomicLong();
+
+  /** How many new connections to acquire before forgetting those that have closed. */
+  private volatile long pruneAt = 64;
+
+  ConnectionPoolMetrics(
+      @Nonnull MetricRegistrar registrar,
+      @Nonnull InstrumentationLevels levels,
+      @Nonnull String name) {
+    this.levels = levels;
+    this.inUse = registrar.counter(MetricRegistry.name(name, "connection-pool-in-use-count"));
+    this.waitDuration = registrar.timer(MetricRegistry.name(name, "connection-pool-wait-duration"));
+    this.ageAtReuse = registrar.timer(MetricRegistry.name(name, "connection-pool-age-at-reuse"));
+    this.callsPerConnection =
+        registrar.histogram(MetricRegistry.name(name, "connection-pool-calls-per-connection"));
+    registrar.register(
+        MetricRegistry.name(name, "connection-pool-streams-per-multiplexed-connection"),
+        new RatioGauge() {
+          @Override
+          protected Ratio getRatio() {
+            return streamsPerMultiplexedConnection();
+          }
+        });
+  }
+
+  /** Returns true if the durations of calls that are timed should be recorded. */
+  boolean timed() {
+    return levels.get(MetricFamily.CONNECTION_POOL).atLeast(InstrumentationLevel.PHASES);
+  }
+
+  /**
+   * Called when a call acquires {@code connection}, which is new if the call just connected it.
+   * Every acquisition is later matched by a call to {@link #released}.
+   */
+  void acquired(@Nonnull Connection connection, boolean isNew) {
+    ConnectionUse use = isNew ? track(connection) : connections.get(connection);
+    if (use != null) {
+      use.calls.incrementAndGet();
+      if (use.inUse.incrementAndGet() == 1) {
+        inUse.inc();
+      }
+    } else if (!isMultiplexed(connection.protocol())) {
+      inUse.inc();
+    }
+  }
+
+  void released(@Nonnull Connection connection) {
+    ConnectionUse use = connections.get(connection);
+    if (use != null) {
+      if (use.inUse.decrementAndGet() == 0) {
+        inUse.dec();
+      }
+    } else if (!isMultiplexed(connection.protocol())) {
+      inUse.dec();
+    }
+  }
+
+  /** Records how long a call waited, from needing a connection until it acquired one. */
+  void recordWait(long nanos) {
+    waitDuration.update(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Records how old {@code connection} is as a call reuses it, if it's known. */
+  void recordReuse(@Nonnull Connection connection, long nowNanos) {
+    ConnectionUse use = connections.get(connection);
+    if (use != null) {
+      ageAtReuse.update(nowNanos - use.createdNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Returns how many calls each HTTP/2 connection in use is carrying at once, on average. Well
+   * above 1 means calls are multiplexed; close to 1 means each call has a connection to itself.
+   * Connections that have closed are forgotten along the way.
+   */
+  private synchronized RatioGauge.Ratio streamsPerMultiplexedConnection() {
+    long streams = 0L;
+    long inUseConnections = 0L;
+    Iterator<Map.Entry<Connection, ConnectionUse>> i = connections.entrySet().iterator();
+    while (i.hasNext()) {
+      Map.Entry<Connection, ConnectionUse> entry = i.next();
+      ConnectionUse use = entry.getValue();
+      if (forget(entry)) {
+        i.remove();
+      } else if (use.multiplexed && use.inUse.get() > 0) {
+        streams += use.inUse.get();
+        inUseConnections++;
+      }
+    }
+    return RatioGauge.Ratio.of(streams, inUseConnections);
+  }
+
+  private ConnectionUse track(Connection connection) {
+    if (created.incrementAndGet() >= pruneAt) {
+      prune();
+    }
+    if (connections.size() >= MAX_TRACKED_CONNECTIONS) return null;
+    ConnectionUse use = new ConnectionUse(connection.protocol());
+    connections.put(connection, use);
+    return use;
+  }
+
+  /**
+   * Forgets connections that have closed. Besides whenever the gauge is reported, this runs once as
+   * many new connections have been acquired since the last time as were left tracked then, so that
+   * its cost is spread over them, even once the most connections are tracked and new ones go
+   * untracked.
+   */
+  private synchronized void prune() {
+    if (created.get() < pruneAt) return;
+    connections.entrySet().removeIf(this::forget);
+    pruneAt = created.get() + Math.max(64, connections.size());
+  }
+
+  /**
+   * Returns true if the entry's connection has closed and no call holds it anymore, recording how
+   * many calls it carried.
+   */
+  private boolean forget(Map.Entry<Connection, ConnectionUse> entry) {
+    if (entry.getValue().inUse.get() > 0 || !entry.getKey().socket().isClosed()) return false;
+    callsPerConnection.update(entry.getValue().calls.get());
+    return true;
+  }
+
+  /** How a tracked connection has been used. */
+  private static final class ConnectionUse {
+    final long createdNanos = System.nanoTime();
+    final boolean multiplexed;
+    /** The calls that have acquired the connection. */
+    final AtomicInteger calls = new AtomicInteger();
+    /** The calls that hold the connection now. */
+    final AtomicInteger inUse = new AtomicInteger();
+
+    ConnectionUse(Protocol protocol) {
+      this.multiplexed = isMultiplexed(protocol);
+    }
+  }
+
+  private static boolean isMultiplexed(Protocol protocol) {
+    return protocol == Protocol.HTTP_2 || protocol == Protocol.H2_PRIOR_KNOWLEDGE;
+  }
+}
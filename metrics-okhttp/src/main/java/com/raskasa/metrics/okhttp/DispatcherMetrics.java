@@ -0,0 +1,327 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.CachedGauge;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import okhttp3.Call;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * Records how calls queue up in a client's {@link Dispatcher}.
+ *
+ * <p>Besides gauges for the dispatcher as a whole, this keeps per-host gauges of running and queued
+ * calls for up to {@code maxHosts} distinct hosts. Like {@link HostMetrics}, once the limit is
+ * reached, calling a new host removes the gauges of a host that wasn't called recently, as picked
+ * by an {@link EvictionRing}.
+ *
+ * <p>Asynchronous calls wait in the dispatcher's queue until they can run within {@link
+ * Dispatcher#getMaxRequests()} and {@link Dispatcher#getMaxRequestsPerHost()}. That wait is timed
+ * from the moment the call is enqueued until its first application interceptor runs, which requires
+ * {@link #interceptor()} to be the client's first application interceptor.
+ *
+ * <p>OkHttp doesn't say whether a call was enqueued or executed synchronously, so the client's
+ * dispatcher is replaced by one, from {@link #instrument}, whose executor marks the thread while it
+ * runs an enqueued call. The mark is taken by the first application interceptor the call reaches,
+ * so synchronous calls made from the call's callback, on the same thread, aren't mistaken for
+ * enqueued ones.
+ */
+final class DispatcherMetrics {
+  /** The default number of distinct hosts that get their own gauges. */
+  static final int DEFAULT_MAX_HOSTS = 20;
+
+  /** Set while a thread runs an enqueued call, until the call reaches the interceptor. */
+  private static final ThreadLocal<Boolean> ENQUEUED = new ThreadLocal<>();
+
+  /** The dispatchers that replace those of the clients instrumented, by the dispatcher replaced. */
+  private static final Map<Dispatcher, Dispatcher> INSTRUMENTED = new WeakHashMap<>();
+
+  /** Orders hosts from the least recently called. */
+  private static final Comparator<Host> LEAST_RECENTLY_CALLED =
+      (a, b) -> Long.signum(a.lastCalledNanos - b.lastCalledNanos);
+
+  private final MetricRegistrar registrar;
+  private final InstrumentationLevels levels;
+  private final Dispatcher dispatcher;
+  private final String name;
+
+  /** The hosts with gauges, by host. */
+  private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+  /** Every host with gauges. Guarded by this. */
+  private final EvictionRing<Host> ring;
+
+  private final Gauge<Map<String, int[]>> callsPerHost;
+
+  /** Listeners of the calls that have started but not yet reached the interceptor. */
+  private final Map<Call, InstrumentedEventListener> pending = new ConcurrentHashMap<>();
+
+  private volatile Timer queueDuration;
+  private final Interceptor interceptor = new ExecutionInterceptor();
+
+  DispatcherMetrics(
+      MetricRegistrar registrar,
+      InstrumentationLevels levels,
+      Dispatcher dispatcher,
+      String name,
+      int maxHosts) {
+    this.registrar = registrar;
+    this.levels = levels;
+    this.dispatcher = dispatcher;
+    this.name = name;
+    this.ring = new EvictionRing<>(maxHosts, LEAST_RECENTLY_CALLED);
+    if (levels.get(MetricFamily.DISPATCHER) != InstrumentationLevel.OFF) {
+      registerGauges();
+      queueDuration();
+    }
+
+    // Both lists are copied under the dispatcher's lock, so take them at most once per second for
+    // all of the per-host gauges rather than once per gauge.
+    this.callsPerHost =
+        new CachedGauge<Map<String, int[]>>(1, TimeUnit.SECONDS) {
+          @Override
+          protected Map<String, int[]> loadValue() {
+            Map<String, int[]> calls = new HashMap<>();
+            count(calls, dispatcher.runningCalls(), 0);
+            count(calls, dispatcher.queuedCalls(), 1);
+            return calls;
+          }
+        };
+  }
+
+  /**
+   * Registers the gauges of the dispatcher as a whole. Like every gauge, they're only registered if
+   * the family isn't off when the client is built.
+   */
+  private void registerGauges() {
+    registrar.register(
+        MetricRegistry.name(name, "dispatcher-running-calls"),
+        (Gauge<Integer>) dispatcher::runningCallsCount);
+    registrar.register(
+        MetricRegistry.name(name, "dispatcher-queued-calls"),
+        (Gauge<Integer>) dispatcher::queuedCallsCount);
+    registrar.register(
+        MetricRegistry.name(name, "dispatcher-max-requests"),
+        (Gauge<Integer>) dispatcher::getMaxRequests);
+    registrar.register(
+        MetricRegistry.name(name, "dispatcher-max-requests-per-host"),
+        (Gauge<Integer>) dispatcher::getMaxRequestsPerHost);
+  }
+
+  /** Returns the queue timer, registering it once the family is first recorded. */
+  private Timer queueDuration() {
+    Timer result = queueDuration;
+    if (result == null) {
+      synchronized (this) {
+        result = queueDuration;
+        if (result == null) {
+          result = registrar.timer(MetricRegistry.name(name, "dispatcher-queue-duration"));
+          queueDuration = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  private static void count(Map<String, int[]> calls, List<Call> list, int index) {
+    for (Call call : list) {
+      calls.computeIfAbsent(call.request().url().host(), host -> new int[2])[index]++;
+    }
+  }
+
+  /** The interceptor that marks the calls it sees as no longer queued. */
+  Interceptor interceptor() {
+    return interceptor;
+  }
+
+  /**
+   * Called when {@code listener}'s call has started, either synchronously or by being enqueued. The
+   * listener is null if the call isn't timed, so its time in the queue isn't recorded either.
+   */
+  void callStarted(@Nonnull Call call, @Nullable InstrumentedEventListener listener) {
+    InstrumentationLevel level = levels.get(MetricFamily.DISPATCHER);
+    if (listener != null && level.atLeast(InstrumentationLevel.PHASES)) {
+      pending.put(call, listener);
+    }
+    if (level == InstrumentationLevel.FULL) {
+      registerHost(call.request().url().host());
+    }
+  }
+
+  /** Called when a timed {@code call} has ended, whether or not it ever left the queue. */
+  void callFinished(@Nonnull Call call) {
+    pending.remove(call);
+  }
+
+  /**
+   * Returns a dispatcher with the same limits as {@code dispatcher}, that runs calls on the same
+   * executor, but marks the threads running enqueued calls. Clients instrumented with the same
+   * dispatcher share the one returned, so that they still share its limits.
+   */
+  @Nonnull
+  static Dispatcher instrument(@Nonnull Dispatcher dispatcher) {
+    if (dispatcher.executorService() instanceof EnqueuedCallExecutor) return dispatcher;
+    synchronized (INSTRUMENTED) {
+      Dispatcher result = INSTRUMENTED.get(dispatcher);
+      if (result == null) {
+        result = new Dispatcher(new EnqueuedCallExecutor(dispatcher.executorService()));
+        result.setMaxRequests(dispatcher.getMaxRequests());
+        result.setMaxRequestsPerHost(dispatcher.getMaxRequestsPerHost());
+        INSTRUMENTED.put(dispatcher, result);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Returns true if the call that's about to execute on this thread was enqueued rather than
+   * executed synchronously, and clears the mark so that calls made later on this thread aren't.
+   */
+  private static boolean takeEnqueued() {
+    if (ENQUEUED.get() == null) return false;
+    ENQUEUED.remove();
+    return true;
+  }
+
+  void recordQueueDuration(long nanos) {
+    queueDuration().update(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void registerHost(String hostname) {
+    long now = System.nanoTime();
+    Host host = hosts.get(hostname);
+    if (host == null) {
+      host = createHost(hostname, now);
+    }
+    host.lastCalledNanos = now;
+  }
+
+  private synchronized Host createHost(String hostname, long nowNanos) {
+    Host host = hosts.get(hostname);
+    if (host != null) return host;
+
+    host = new Host(hostname);
+    host.lastCalledNanos = nowNanos;
+    Host evicted = ring.add(host);
+    if (evicted != null) {
+      hosts.remove(evicted.hostname);
+      registrar.remove(
+          MetricRegistry.name(name, "dispatcher-hosts", evicted.hostname, "running-calls"));
+      registrar.remove(
+          MetricRegistry.name(name, "dispatcher-hosts", evicted.hostname, "queued-calls"));
+    }
+    hosts.put(hostname, host);
+    registrar.register(
+        MetricRegistry.name(name, "dispatcher-hosts", hostname, "running-calls"),
+        (Gauge<Integer>) () -> hostCalls(hostname, 0));
+    registrar.register(
+        MetricRegistry.name(name, "dispatcher-hosts", hostname, "queued-calls"),
+        (Gauge<Integer>) () -> hostCalls(hostname, 1));
+    return host;
+  }
+
+  private int hostCalls(String host, int index) {
+    int[] calls = callsPerHost.getValue().get(host);
+    return calls != null ? calls[index] : 0;
+  }
+
+  /** A host with gauges. */
+  private static final class Host {
+    final String hostname;
+    volatile long lastCalledNanos;
+
+    Host(String hostname) {
+      this.hostname = hostname;
+    }
+  }
+
+  final class ExecutionInterceptor implements Interceptor {
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+      boolean enqueued = takeEnqueued();
+      InstrumentedEventListener listener = pending.remove(chain.call());
+      if (listener != null) {
+        listener.callExecuting(enqueued);
+      }
+      return chain.proceed(chain.request());
+    }
+  }
+
+  /** Runs a dispatcher's enqueued calls on another executor, marking the threads that run them. */
+  static final class EnqueuedCallExecutor extends AbstractExecutorService {
+    private final ExecutorService delegate;
+
+    EnqueuedCallExecutor(ExecutorService delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(@Nonnull Runnable call) {
+      delegate.execute(
+          () -> {
+            ENQUEUED.set(Boolean.TRUE);
+            try {
+              call.run();
+            } finally {
+              ENQUEUED.remove();
+            }
+          });
+    }
+
+    @Override
+    public void shutdown() {
+      delegate.shutdown();
+    }
+
+    @Nonnull
+    @Override
+    public List<Runnable> shutdownNow() {
+      return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, @Nonnull TimeUnit unit)
+        throws InterruptedException {
+      return delegate.awaitTermination(timeout, unit);
+    }
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import okhttp3.CipherSuite;
+import okhttp3.Protocol;
+import okhttp3.TlsVersion;
+
+/**
+ * The immutable set of metrics recorded by {@link InstrumentedEventListener}.
+ *
+ * <p>The metrics are resolved from the registry once per instrumented client, so creating a
+ * listener for each call doesn't need to build metric names or look them up in the registry.
+ */
+final class EventListenerMetrics {
+  final Meter callStart;
+  final Meter callEnd;
+  final Meter callFailed;
+  final Timer callFailedDuration;
+  final Timer callDuration;
+  final Meter callReusedConnection;
+  final Timer callReusedConnectionDuration;
+  final Meter callNewConnection;
+  final Timer callNewConnectionDuration;
+
+  final Meter dnsStart;
+  final Meter dnsEnd;
+  final Timer dnsDuration;
+
+  final Meter connectionStart;
+  final Meter connectionEnd;
+  final Meter connectionFailed;
+  final Timer connectionDuration;
+  final Histogram connectAttempts;
+  final Meter connectionAcquired;
+  final Meter connectionReleased;
+
+  final Histogram networkAttempts;
+  private final Meter followUpRedirect;
+  private final Meter followUpAuth;
+  private final Meter followUpRetry;
+  private final Meter followUpOther;
+
+  final Timer tlsHandshakeDuration;
+  final Meter tlsHandshakeFailed;
+  final Meter tlsHandshakeFull;
+  final Meter tlsHandshakeResumed;
+
+  /** Failed calls and connect attempts by cause, indexed by {@link FailureCause#ordinal()}. */
+  private final Meter[] callFailedByCause;
+
+  private final Meter[] connectionFailedByCause;
+
+  /** New connections by their protocol, indexed by {@link Protocol#ordinal()}. */
+  private final Meter[] connectionProtocols;
+
+  /** Calls by the protocol of the connection that carried them, indexed the same way. */
+  private final Meter[] callProtocols;
+
+  /** Negotiated TLS versions, indexed by {@link TlsVersion#ordinal()}. */
+  private final Meter[] tlsVersions;
+
+  /** Negotiated cipher suites, created on first use since OkHttp knows of hundreds. */
+  private final Map<CipherSuite, Meter> cipherSuites = new ConcurrentHashMap<>();
+
+  private final MetricRegistrar registrar;
+  private final String name;
+
+  final Timer requestHeadersDuration;
+  final Timer requestBodyDuration;
+  final Timer serverWaitDuration;
+  final Timer responseBodyDuration;
+
+  final Histogram requestHeadersSize;
+  final Histogram requestBodySize;
+  final Histogram responseHeadersSize;
+  final Histogram responseBodySize;
+  final Meter bytesSent;
+  final Meter bytesReceived;
+
+  /** The metrics kept per host or route, or null if they aren't kept. */
+  @Nullable final HostMetrics hosts;
+
+  EventListenerMetrics(
+      @Nonnull MetricRegistrar registrar, @Nullable String name, @Nullable HostMetrics hosts) {
+    this.registrar = registrar;
+    this.name = name;
+    this.hosts = hosts;
+
+    this.callStart = registrar.meter(MetricRegistry.name(name, "calls-start"));
+    this.callEnd = registrar.meter(MetricRegistry.name(name, "calls-end"));
+    this.callFailed = registrar.meter(MetricRegistry.name(name, "calls-failed"));
+    this.callFailedDuration = registrar.timer(MetricRegistry.name(name, "calls-failed-duration"));
+    this.callDuration = registrar.timer(MetricRegistry.name(name, "calls-duration"));
+    this.callReusedConnection =
+        registrar.meter(MetricRegistry.name(name, "calls-reused-connection"));
+    this.callReusedConnectionDuration =
+        registrar.timer(MetricRegistry.name(name, "calls-reused-connection-duration"));
+    this.callNewConnection = registrar.meter(MetricRegistry.name(name, "calls-new-connection"));
+    this.callNewConnectionDuration =
+        registrar.timer(MetricRegistry.name(name, "calls-new-connection-duration"));
+
+    this.dnsStart = registrar.meter(MetricRegistry.name(name, "dns-start"));
+    this.dnsEnd = registrar.meter(MetricRegistry.name(name, "dns-end"));
+    this.dnsDuration = registrar.timer(MetricRegistry.name(name, "dns-duration"));
+
+    this.connectionStart = registrar.meter(MetricRegistry.name(name, "connections-start"));
+    this.connectionEnd = registrar.meter(MetricRegistry.name(name, "connections-end"));
+    this.connectionFailed = registrar.meter(MetricRegistry.name(name, "connections-failed"));
+    this.connectionDuration = registrar.timer(MetricRegistry.name(name, "connections-duration"));
+    this.connectAttempts =
+        registrar.histogram(MetricRegistry.name(name, "connections-attempts-per-call"));
+    this.connectionAcquired = registrar.meter(MetricRegistry.name(name, "connections-acquired"));
+    this.connectionReleased = registrar.meter(MetricRegistry.name(name, "connections-released"));
+
+    this.networkAttempts =
+        registrar.histogram(MetricRegistry.name(name, "network-attempts-per-call"));
+    this.followUpRedirect = registrar.meter(MetricRegistry.name(name, "follow-ups", "redirect"));
+    this.followUpAuth = registrar.meter(MetricRegistry.name(name, "follow-ups", "auth"));
+    this.followUpRetry = registrar.meter(MetricRegistry.name(name, "follow-ups", "retry"));
+    this.followUpOther = registrar.meter(MetricRegistry.name(name, "follow-ups", "other"));
+
+    FailureCause[] causes = FailureCause.values();
+    this.callFailedByCause = new Meter[causes.length];
+    this.connectionFailedByCause = new Meter[causes.length];
+    for (FailureCause cause : causes) {
+      this.callFailedByCause[cause.ordinal()] =
+          registrar.meter(MetricRegistry.name(name, "calls-failed", cause.metricName));
+      this.connectionFailedByCause[cause.ordinal()] =
+          registrar.meter(MetricRegistry.name(name, "connections-failed", cause.metricName));
+    }
+
+    Protocol[] protocols = Protocol.values();
+    this.connectionProtocols = new Meter[protocols.length];
+    this.callProtocols = new Meter[protocols.length];
+    for (Protocol protocol : protocols) {
+      String protocolName = protocol.name().toLowerCase(Locale.ROOT);
+      this.connectionProtocols[protocol.ordinal()] =
+          registrar.meter(MetricRegistry.name(name, "connections-protocols", protocolName));
+      this.callProtocols[protocol.ordinal()] =
+          registrar.meter(MetricRegistry.name(name, "calls-protocols", protocolName));
+    }
+
+    this.tlsHandshakeDuration =
+        registrar.timer(MetricRegistry.name(name, "tls-handshakes-duration"));
+    this.tlsHandshakeFailed = registrar.meter(MetricRegistry.name(name, "tls-handshakes-failed"));
+    this.tlsHandshakeFull = registrar.meter(MetricRegistry.name(name, "tls-handshakes-full"));
+    this.tlsHandshakeResumed = registrar.meter(MetricRegistry.name(name, "tls-handshakes-resumed"));
+    TlsVersion[] versions = TlsVersion.values();
+    this.tlsVersions = new Meter[versions.length];
+    for (TlsVersion version : versions) {
+      this.tlsVersions[version.ordinal()] =
+          registrar.meter(MetricRegistry.name(name, "tls-versions", version.javaName()));
+    }
+
+    this.requestHeadersDuration =
+        registrar.timer(MetricRegistry.name(name, "request-headers-duration"));
+    this.requestBodyDuration = registrar.timer(MetricRegistry.name(name, "request-body-duration"));
+    this.serverWaitDuration = registrar.timer(MetricRegistry.name(name, "server-wait-duration"));
+    this.responseBodyDuration =
+        registrar.timer(MetricRegistry.name(name, "response-body-duration"));
+
+    this.requestHeadersSize =
+        registrar.histogram(MetricRegistry.name(name, "request-headers-size"));
+    this.requestBodySize = registrar.histogram(MetricRegistry.name(name, "request-body-size"));
+    this.responseHeadersSize =
+        registrar.histogram(MetricRegistry.name(name, "response-headers-size"));
+    this.responseBodySize = registrar.histogram(MetricRegistry.name(name, "response-body-size"));
+    this.bytesSent = registrar.meter(MetricRegistry.name(name, "bytes-sent"));
+    this.bytesReceived = registrar.meter(MetricRegistry.name(name, "bytes-received"));
+  }
+
+  Meter callFailed(@Nonnull FailureCause cause) {
+    return callFailedByCause[cause.ordinal()];
+  }
+
+  Meter connectionFailed(@Nonnull FailureCause cause) {
+    return connectionFailedByCause[cause.ordinal()];
+  }
+
+  Meter connectionProtocol(@Nonnull Protocol protocol) {
+    return connectionProtocols[protocol.ordinal()];
+  }
+
+  Meter callProtocol(@Nonnull Protocol protocol) {
+    return callProtocols[protocol.ordinal()];
+  }
+
+  /**
+   * Returns the meter of requests sent again by the same call, by the outcome of the request
+   * before: its response's status code, or 0 if it failed without one.
+   */
+  Meter followUp(int previousResponseCode) {
+    switch (previousResponseCode) {
+      case 0:
+      case HttpURLConnection.HTTP_CLIENT_TIMEOUT:
+      case 421: // Misdirected Request, answered by retrying on a new connection.
+      case HttpURLConnection.HTTP_UNAVAILABLE:
+        return followUpRetry;
+      case HttpURLConnection.HTTP_UNAUTHORIZED:
+      case HttpURLConnection.HTTP_PROXY_AUTH:
+        return followUpAuth;
+      default:
+        return previousResponseCode >= 300 && previousResponseCode < 400
+            ? followUpRedirect
+            : followUpOther;
+    }
+  }
+
+  Meter tlsVersion(@Nonnull TlsVersion version) {
+    return tlsVersions[version.ordinal()];
+  }
+
+  Meter cipherSuite(@Nonnull CipherSuite cipherSuite) {
+    Meter meter = cipherSuites.get(cipherSuite);
+    if (meter == null) {
+      meter =
+          cipherSuites.computeIfAbsent(
+              cipherSuite,
+              suite ->
+                  registrar.meter(
+                      MetricRegistry.name(name, "tls-cipher-suites", suite.javaName())));
+    }
+    return meter;
+  }
+}
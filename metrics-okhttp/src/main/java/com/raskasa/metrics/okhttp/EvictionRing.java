@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * The entries of a cache that holds at most {@code capacity} of them, which picks the entry to
+ * evict when a new one is added to a full cache.
+ *
+ * <p>Rather than looking at every entry, which would make each eviction from a large cache take
+ * time in proportion to its size, eviction compares the next {@link #SAMPLE_SIZE} entries after the
+ * previous ones it compared, and evicts whichever of those comes first in the eviction order. Every
+ * entry is compared in turn, and a new entry takes the evicted one's place, so it's only compared
+ * once the others have been. Caches of up to {@link #SAMPLE_SIZE} entries evict exactly in order.
+ *
+ * <p>This isn't thread safe; it's guarded by the lock its cache adds entries under.
+ */
+final class EvictionRing<E> {
+  /** How many entries each eviction compares. */
+  static final int SAMPLE_SIZE = 8;
+
+  private final int capacity;
+  private final Comparator<? super E> evictionOrder;
+  private final List<E> entries = new ArrayList<>();
+
+  /** The entry that the next eviction compares first. */
+  private int hand;
+
+  /**
+   * Creates a ring of at most {@code capacity} entries, where {@code evictionOrder} compares an
+   * entry that should be evicted first as less than the other.
+   */
+  EvictionRing(int capacity, Comparator<? super E> evictionOrder) {
+    if (capacity <= 0) throw new IllegalArgumentException("capacity <= 0: " + capacity);
+    this.capacity = capacity;
+    this.evictionOrder = evictionOrder;
+  }
+
+  /**
+   * Adds {@code entry}, and returns the entry it evicted to make room for it, or null if there was
+   * room already.
+   */
+  @Nullable
+  E add(E entry) {
+    if (entries.size() < capacity) {
+      entries.add(entry);
+      return null;
+    }
+    int sampleSize = Math.min(SAMPLE_SIZE, capacity);
+    int evicted = hand;
+    for (int i = 1; i < sampleSize; i++) {
+      int index = (hand + i) % capacity;
+      if (evictionOrder.compare(entries.get(index), entries.get(evicted)) < 0) {
+        evicted = index;
+      }
+    }
+    hand = (hand + sampleSize) % capacity;
+    return entries.set(evicted, entry);
+  }
+
+  /** Returns how many entries there are. */
+  int size() {
+    return entries.size();
+  }
+}
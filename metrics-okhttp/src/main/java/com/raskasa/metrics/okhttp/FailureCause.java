@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import javax.annotation.Nonnull;
+import javax.net.ssl.SSLException;
+
+/**
+ * Why a call or a connect attempt failed, as far as can be told from the {@link IOException} OkHttp
+ * reports. The failures of each cause are counted in a meter named after it, such as {@code
+ * calls-failed.read-timeout}.
+ */
+enum FailureCause {
+  /** The call was turned away by the client's adaptive concurrency limit. */
+  REJECTED("rejected"),
+  /** The call was canceled before it completed. */
+  CANCELED("canceled"),
+  /**
+   * The call took longer than its {@link okhttp3.OkHttpClient#callTimeoutMillis() call timeout}.
+   */
+  CALL_TIMEOUT("call-timeout"),
+  /** Connecting took longer than the connect timeout. */
+  CONNECT_TIMEOUT("connect-timeout"),
+  /** Reading, or writing, took longer than the read or write timeout. */
+  READ_TIMEOUT("read-timeout"),
+  /** The host's name couldn't be resolved. */
+  UNKNOWN_HOST("unknown-host"),
+  /** The TLS handshake failed, or the TLS session broke. */
+  TLS("tls"),
+  /** The host refused the connection, or couldn't be reached. */
+  CONNECTION_REFUSED("connection-refused"),
+  /** The connection, or the HTTP/2 stream, was reset by the peer. */
+  CONNECTION_RESET("connection-reset"),
+  /** Any other failure. */
+  OTHER("other");
+
+  final String metricName;
+
+  FailureCause(String metricName) {
+    this.metricName = metricName;
+  }
+
+  /**
+   * Classifies {@code e}, which failed a call that's {@code canceled} or not, while {@code
+   * connecting} or after.
+   */
+  static FailureCause of(@Nonnull IOException e, boolean canceled, boolean connecting) {
+    if (e instanceof ConcurrencyLimitExceededException) {
+      return REJECTED;
+    } else if (e instanceof SocketTimeoutException) {
+      String message = e.getMessage();
+      return connecting || (message != null && message.toLowerCase(Locale.ROOT).contains("connect"))
+          ? CONNECT_TIMEOUT
+          : READ_TIMEOUT;
+    } else if (e instanceof InterruptedIOException && "timeout".equals(e.getMessage())) {
+      // OkHttp cancels a call when its call timeout elapses, so this is checked first.
+      return CALL_TIMEOUT;
+    } else if (canceled) {
+      return CANCELED;
+    } else if (e instanceof UnknownHostException) {
+      return UNKNOWN_HOST;
+    } else if (e instanceof SSLException) {
+      return TLS;
+    } else if (e instanceof ConnectException) {
+      return CONNECTION_REFUSED;
+    }
+    String message = e.getMessage();
+    if (message != null && message.toLowerCase(Locale.ROOT).contains("reset")) {
+      // "Connection reset" from the socket, or "stream was reset" from OkHttp's HTTP/2 streams.
+      return CONNECTION_RESET;
+    }
+    return OTHER;
+  }
+}
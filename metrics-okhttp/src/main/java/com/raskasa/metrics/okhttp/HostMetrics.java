@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import okhttp3.HttpUrl;
+
+/**
+ * Call, DNS, and connection metrics kept separately for each host a client calls, or for each
+ * scheme, host, and port if {@code byRoute} is set.
+ *
+ * <p>At most {@code maxEntries} hosts (or routes) are tracked at once. When a call is made to a new
+ * one and the limit is reached, an entry that wasn't called recently is evicted, as picked by an
+ * {@link EvictionRing}, and its metrics are removed from the registry. The entry is recreated, with
+ * new metrics, if it's called again.
+ *
+ * <p>Looking up an entry that already exists doesn't allocate.
+ */
+final class HostMetrics {
+  /** Orders entries from the least recently used. */
+  private static final Comparator<Entry> LEAST_RECENTLY_USED =
+      (a, b) -> Long.signum(a.lastUsedNanos - b.lastUsedNanos);
+
+  private final MetricRegistrar registrar;
+  private final String name;
+  private final boolean byRoute;
+
+  /** Entries by host. Without {@code byRoute}, each host has exactly one entry. */
+  private final Map<String, Entry[]> entries = new ConcurrentHashMap<>();
+
+  /** Every entry, across all hosts. Guarded by this. */
+  private final EvictionRing<Entry> ring;
+
+  HostMetrics(
+      @Nonnull MetricRegistrar registrar, @Nullable String name, int maxEntries, boolean byRoute) {
+    if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries <= 0: " + maxEntries);
+    this.registrar = registrar;
+    this.name = name;
+    this.byRoute = byRoute;
+    this.ring = new EvictionRing<>(maxEntries, LEAST_RECENTLY_USED);
+  }
+
+  /** Returns the metrics for {@code url}'s host (or route), creating them if necessary. */
+  @Nonnull
+  Entry get(@Nonnull HttpUrl url, long nowNanos) {
+    Entry entry = find(entries.get(url.host()), url);
+    if (entry == null) {
+      entry = create(url, nowNanos);
+    }
+    entry.lastUsedNanos = nowNanos;
+    return entry;
+  }
+
+  @Nullable
+  private Entry find(@Nullable Entry[] hostEntries, HttpUrl url) {
+    if (hostEntries == null) return null;
+    if (!byRoute) return hostEntries[0];
+    for (Entry entry : hostEntries) {
+      if (entry.port == url.port() && entry.scheme.equals(url.scheme())) return entry;
+    }
+    return null;
+  }
+
+  private synchronized Entry create(HttpUrl url, long nowNanos) {
+    Entry[] hostEntries = entries.get(url.host());
+    Entry entry = find(hostEntries, url);
+    if (entry != null) return entry;
+
+    String prefix =
+        byRoute
+            ? MetricRegistry.name(
+                name, "routes", url.scheme(), url.host(), Integer.toString(url.port()))
+            : MetricRegistry.name(name, "hosts", url.host());
+    entry = new Entry(registrar, prefix, url.host(), url.scheme(), url.port());
+    entry.lastUsedNanos = nowNanos;
+    Entry evicted = ring.add(entry);
+    if (evicted != null) {
+      evict(evicted);
+      hostEntries = entries.get(url.host());
+    }
+
+    if (hostEntries == null) {
+      hostEntries = new Entry[] {entry};
+    } else {
+      hostEntries = Arrays.copyOf(hostEntries, hostEntries.length + 1);
+      hostEntries[hostEntries.length - 1] = entry;
+    }
+    entries.put(url.host(), hostEntries);
+    return entry;
+  }
+
+  private void evict(Entry evicted) {
+    Entry[] hostEntries = entries.get(evicted.host);
+    if (hostEntries.length == 1) {
+      entries.remove(evicted.host);
+    } else {
+      Entry[] remaining = new Entry[hostEntries.length - 1];
+      int i = 0;
+      for (Entry entry : hostEntries) {
+        if (entry != evicted) remaining[i++] = entry;
+      }
+      entries.put(evicted.host, remaining);
+    }
+    evicted.remove(registrar);
+  }
+
+  /** The metrics of a single host or route. */
+  static final class Entry {
+    private static final String[] METRICS = {
+      "calls-duration", "calls-failed", "dns-duration", "connections-duration", "connections-failed"
+    };
+
+    private final String prefix;
+    private final String host;
+    private final String scheme;
+    private final int port;
+    volatile long lastUsedNanos;
+
+    final Timer callDuration;
+    final Meter callFailed;
+    final Timer dnsDuration;
+    final Timer connectionDuration;
+    final Meter connectionFailed;
+
+    Entry(MetricRegistrar registrar, String prefix, String host, String scheme, int port) {
+      this.prefix = prefix;
+      this.host = host;
+      this.scheme = scheme;
+      this.port = port;
+      this.callDuration = registrar.timer(MetricRegistry.name(prefix, "calls-duration"));
+      this.callFailed = registrar.meter(MetricRegistry.name(prefix, "calls-failed"));
+      this.dnsDuration = registrar.timer(MetricRegistry.name(prefix, "dns-duration"));
+      this.connectionDuration =
+          registrar.timer(MetricRegistry.name(prefix, "connections-duration"));
+      this.connectionFailed = registrar.meter(MetricRegistry.name(prefix, "connections-failed"));
+    }
+
+    void remove(MetricRegistrar registrar) {
+      for (String metric : METRICS) {
+        registrar.remove(MetricRegistry.name(prefix, metric));
+      }
+    }
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+/**
+ * How much of a {@link MetricFamily family of metrics} an instrumented client records. Each level
+ * records everything the level before it does.
+ *
+ * @see InstrumentationLevels
+ */
+public enum InstrumentationLevel {
+  /** Records nothing. */
+  OFF,
+  /** Counts events, such as calls, connections, and bytes, and registers gauges. */
+  BASIC,
+  /**
+   * Also times calls and each phase of them, such as DNS, connecting, and reading the response, and
+   * counts how many connect attempts and requests each call took.
+   */
+  PHASES,
+  /** Also records the sizes of requests and responses, and metrics per host or route. */
+  FULL;
+
+  boolean atLeast(InstrumentationLevel level) {
+    return compareTo(level) >= 0;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Arrays;
+import javax.annotation.Nonnull;
+
+/**
+ * The {@link InstrumentationLevel level} of each {@link MetricFamily family of metrics} of one or
+ * more instrumented clients, which can be changed while the clients are in use. For example, to
+ * time calls only while investigating an incident:
+ *
+ * <pre>{@code
+ * InstrumentationLevels levels = new InstrumentationLevels(InstrumentationLevel.BASIC);
+ * OkHttpClient client = InstrumentedOkHttpClients.builder(registry).levels(levels).build();
+ * ...
+ * levels.set(MetricFamily.EVENTS, InstrumentationLevel.FULL);
+ * }</pre>
+ *
+ * <p>A new level applies to calls that start after it's set, while calls already in flight keep the
+ * level they started with. Checking the level costs a single volatile read per call for {@link
+ * MetricFamily#EVENTS} and {@link MetricFamily#DISPATCHER}, and per network request for {@link
+ * MetricFamily#NETWORK_REQUESTS}.
+ *
+ * <p>Gauges cost nothing until they're read, so the levels of {@link MetricFamily#CACHE}, {@link
+ * MetricFamily#CONNECTION_POOL}, and the gauges of {@link MetricFamily#DISPATCHER} only decide
+ * whether the gauges are registered when a client is built.
+ */
+public final class InstrumentationLevels {
+  /** Replaced, rather than modified, on every change, so reading a level needs no lock. */
+  private volatile InstrumentationLevel[] levels;
+
+  /** Every family is recorded in {@link InstrumentationLevel#FULL full}. */
+  public InstrumentationLevels() {
+    this(InstrumentationLevel.FULL);
+  }
+
+  /** Every family is recorded at {@code level}. */
+  public InstrumentationLevels(@Nonnull InstrumentationLevel level) {
+    requireNonNull(level, "level == null");
+    InstrumentationLevel[] levels = new InstrumentationLevel[MetricFamily.values().length];
+    Arrays.fill(levels, level);
+    this.levels = levels;
+  }
+
+  /** Returns the level {@code family} is currently recorded at. */
+  @Nonnull
+  public InstrumentationLevel get(@Nonnull MetricFamily family) {
+    return levels[family.ordinal()];
+  }
+
+  /** Records {@code family} at {@code level} from now on. */
+  public synchronized void set(@Nonnull MetricFamily family, @Nonnull InstrumentationLevel level) {
+    requireNonNull(family, "family == null");
+    requireNonNull(level, "level == null");
+    InstrumentationLevel[] levels = this.levels.clone();
+    levels[family.ordinal()] = level;
+    this.levels = levels;
+  }
+
+  /** Records every family at {@code level} from now on. */
+  public synchronized void setAll(@Nonnull InstrumentationLevel level) {
+    requireNonNull(level, "level == null");
+    InstrumentationLevel[] levels = new InstrumentationLevel[this.levels.length];
+    Arrays.fill(levels, level);
+    this.levels = levels;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder("InstrumentationLevels{");
+    InstrumentationLevel[] levels = this.levels;
+    for (MetricFamily family : MetricFamily.values()) {
+      if (family.ordinal() > 0) result.append(", ");
+      result.append(family).append('=').append(levels[family.ordinal()]);
+    }
+    return result.append('}').toString();
+  }
+}
@@ -15,16 +15,20 @@
  */
 package com.raskasa.metrics.okhttp;
 
-import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
+import java.net.Socket;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 import okhttp3.Call;
 import okhttp3.Connection;
 import okhttp3.EventListener;
@@ -48,24 +52,71 @@ import okhttp3.Response;
  * @see EventListener for semantics and restrictions on listener implementations.
  */
 final class InstrumentedEventListener extends EventListener {
+  /**
+   * The name of the value bound to each TLS session once its handshake is recorded. A session
+   * resumed later carries it over, which tells resumed handshakes from full ones.
+   */
+  private static final String HANDSHAKE_RECORDED =
+      InstrumentedEventListener.class.getName() + ".handshake-recorded";
+
   static final class Factory implements EventListener.Factory {
-    private final MetricRegistry registry;
-    private final EventListener.Factory delegate;
-    private final String name;
+    /** The instrumented client this factory was created for, or null if there isn't one. */
+    @Nullable final InstrumentedOkHttpClient client;
+
+    final EventListener.Factory delegate;
+    private final EventListenerMetrics metrics;
+    private final DispatcherMetrics dispatcher;
+    private final ConnectionPoolMetrics pool;
+    private final InstrumentationLevels levels;
+    private final double sampleRate;
 
     Factory(
         @Nonnull MetricRegistry registry,
         @Nonnull EventListener.Factory delegate,
         @Nullable String name) {
-      this.registry = registry;
+      this(
+          null,
+          new EventListenerMetrics(MetricRegistrar.withDefaults(registry), name, null),
+          null,
+          null,
+          delegate,
+          new InstrumentationLevels(),
+          1.0);
+    }
+
+    /**
+     * @param sampleRate the fraction of calls whose durations and sizes are recorded, in (0, 1].
+     */
+    Factory(
+        @Nullable InstrumentedOkHttpClient client,
+        @Nonnull EventListenerMetrics metrics,
+        @Nullable DispatcherMetrics dispatcher,
+        @Nullable ConnectionPoolMetrics pool,
+        @Nonnull EventListener.Factory delegate,
+        @Nonnull InstrumentationLevels levels,
+        double sampleRate) {
+      this.client = client;
+      this.metrics = metrics;
+      this.dispatcher = dispatcher;
+      this.pool = pool;
       this.delegate = delegate;
-      this.name = name;
+      this.levels = levels;
+      this.sampleRate = sampleRate;
     }
 
     @Nonnull
     @Override
     public EventListener create(@Nonnull Call call) {
-      return new InstrumentedEventListener(this.registry, this.delegate.create(call), this.name);
+      // The level is read once per call, so a call is recorded consistently even if the level
+      // changes while it's in flight.
+      InstrumentationLevel level = this.levels.get(MetricFamily.EVENTS);
+      if (level == InstrumentationLevel.OFF) {
+        return this.delegate.create(call);
+      }
+      boolean sampled =
+          this.sampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < this.sampleRate;
+      return new InstrumentedEventListener(
+          this.metrics, this.dispatcher, this.pool, this.delegate.create(call), level, sampled);
     }
   }
 
@@ -77,83 +128,188 @@ final class InstrumentedEventListener extends EventListener {
    */
   private final EventListener delegate;
 
-  private final Meter callStart;
-  private final Meter callEnd;
-  private final Meter callFailed;
-  private final Timer callDuration;
-  private Timer.Context callDurationContext;
-
-  private final Meter dnsStart;
-  private final Meter dnsEnd;
-  private final Timer dnsDuration;
-  private Timer.Context dnsDurationContext;
-
-  private final Meter connectionStart;
-  private final Meter connectionEnd;
-  private final Meter connectionFailed;
-  private final Timer connectionDuration;
-  private Timer.Context connectionDurationContext;
-  private final Meter connectionAcquired;
-  private final Meter connectionReleased;
+  /** The metrics shared by every listener created for the instrumented client. */
+  private final EventListenerMetrics metrics;
+
+  /** The client's dispatcher metrics, or null if the dispatcher isn't instrumented. */
+  @Nullable private final DispatcherMetrics dispatcher;
+
+  /** The client's connection pool metrics, or null if the pool isn't instrumented. */
+  @Nullable private final ConnectionPoolMetrics pool;
+
+  /**
+   * Whether this call's durations, and its sizes, are recorded. Every call is counted, but one that
+   * isn't timed, because of its level or because it isn't sampled, skips reading the clock and
+   * updating timers and histograms altogether.
+   */
+  private final boolean timed;
+
+  private final boolean sized;
+
+  /** Whether this call is recorded per host, if the client keeps metrics per host. */
+  private final boolean perHost;
+
+  // Every duration is timed from a System.nanoTime() timestamp taken when its phase starts, so that
+  // timing a call allocates nothing and reads the clock once per event.
+
+  /** When the call was started, to time how long it waits to execute. */
+  private long callStartNanos;
+
+  /** The metrics of the call's host, or null if they aren't kept per host. */
+  @Nullable private HostMetrics.Entry host;
+
+  /** Whether the call acquired a connection, and how many times it tried to connect to get one. */
+  private boolean connectionAcquired;
+
+  /** The protocol of the connection the call acquired last, or null if it hasn't acquired one. */
+  @Nullable private Protocol protocol;
+
+  private int connectAttempts;
+
+  private long dnsStartNanos;
+
+  /**
+   * When the latest connect attempt started. OkHttp tries the routes to a host one at a time, so
+   * each attempt ends before the next starts.
+   */
+  private long connectStartNanos;
+
+  /**
+   * When the call last needed a connection: when it started executing, or when it released its
+   * previous connection to follow a redirect or retry.
+   */
+  private long acquireStartNanos;
+
+  /** Whether the connection acquired next was just connected, rather than reused. */
+  private boolean connectedSinceAcquired;
+
+  /** Whether the call has started connecting since it last acquired a connection. */
+  private boolean connecting;
+
+  private long secureConnectStartNanos;
+  private boolean secureConnecting;
+
+  /** When the request headers, request body, or response body currently in transfer started. */
+  private long phaseStartNanos;
+
+  /** When the request was last written in full, or 0 once the server has responded to it. */
+  private long requestEndNanos;
+
+  /** Whether the connection acquired next completed a TLS handshake that's yet to be classified. */
+  private boolean secureConnected;
+
+  /**
+   * How many times the call has started sending a request, and the status code of the latest
+   * response, or 0 if the latest exchange failed before one was read.
+   */
+  private int exchanges;
+
+  private int lastResponseCode;
 
   InstrumentedEventListener(
-      @Nonnull MetricRegistry registry, @Nonnull EventListener delegate, @Nullable String name) {
+      @Nonnull EventListenerMetrics metrics,
+      @Nullable DispatcherMetrics dispatcher,
+      @Nullable ConnectionPoolMetrics pool,
+      @Nonnull EventListener delegate,
+      @Nonnull InstrumentationLevel level,
+      boolean sampled) {
+    this.metrics = metrics;
+    this.dispatcher = dispatcher;
+    this.pool = pool;
     this.delegate = delegate;
+    this.timed = sampled && level.atLeast(InstrumentationLevel.PHASES);
+    this.sized = sampled && level == InstrumentationLevel.FULL;
+    this.perHost = level == InstrumentationLevel.FULL && metrics.hosts != null;
+  }
 
-    this.callStart = registry.meter(MetricRegistry.name(name, "calls-start"));
-    this.callEnd = registry.meter(MetricRegistry.name(name, "calls-end"));
-    this.callFailed = registry.meter(MetricRegistry.name(name, "calls-failed"));
-    this.callDuration = registry.timer(MetricRegistry.name(name, "calls-duration"));
-
-    this.dnsStart = registry.meter(MetricRegistry.name(name, "dns-start"));
-    this.dnsEnd = registry.meter(MetricRegistry.name(name, "dns-end"));
-    this.dnsDuration = registry.timer(MetricRegistry.name(name, "dns-duration"));
-
-    this.connectionStart = registry.meter(MetricRegistry.name(name, "connections-start"));
-    this.connectionEnd = registry.meter(MetricRegistry.name(name, "connections-end"));
-    this.connectionFailed = registry.meter(MetricRegistry.name(name, "connections-failed"));
-    this.connectionDuration = registry.timer(MetricRegistry.name(name, "connections-duration"));
-    this.connectionAcquired = registry.meter(MetricRegistry.name(name, "connections-acquired"));
-    this.connectionReleased = registry.meter(MetricRegistry.name(name, "connections-released"));
+  /**
+   * Called by the {@link DispatcherMetrics#interceptor() dispatcher's interceptor} once the call
+   * begins executing, after waiting in the dispatcher's queue if it was {@code enqueued}.
+   */
+  void callExecuting(boolean enqueued) {
+    long now = System.nanoTime();
+    if (enqueued) {
+      this.dispatcher.recordQueueDuration(now - this.callStartNanos);
+    }
+    this.acquireStartNanos = now;
   }
 
   @Override
   public void callStart(@Nonnull Call call) {
-    this.callStart.mark();
-    this.callDurationContext = this.callDuration.time();
+    this.metrics.callStart.mark();
+    if (this.timed || this.perHost) {
+      this.callStartNanos = System.nanoTime();
+      this.acquireStartNanos = this.callStartNanos;
+    }
+    if (this.perHost) {
+      this.host = this.metrics.hosts.get(call.request().url(), this.callStartNanos);
+    }
+    if (this.dispatcher != null) {
+      if (this.timed) {
+        this.dispatcher.callStarted(call, this);
+      } else {
+        this.dispatcher.callStarted(call, null);
+      }
+    }
     this.delegate.callStart(call);
   }
 
   @Override
   public void dnsStart(@Nonnull Call call, @Nonnull String domainName) {
-    this.dnsStart.mark();
-    this.dnsDurationContext = this.dnsDuration.time();
+    this.metrics.dnsStart.mark();
+    if (this.timed) {
+      this.dnsStartNanos = System.nanoTime();
+    }
     this.delegate.dnsStart(call, domainName);
   }
 
   @Override
   public void dnsEnd(
       @Nonnull Call call, @Nonnull String domainName, @Nonnull List<InetAddress> inetAddressList) {
-    this.dnsDurationContext.stop();
-    this.dnsEnd.mark();
+    this.metrics.dnsEnd.mark();
+    if (this.timed) {
+      long nanos = System.nanoTime() - this.dnsStartNanos;
+      this.metrics.dnsDuration.update(nanos, TimeUnit.NANOSECONDS);
+      if (this.host != null) {
+        this.host.dnsDuration.update(nanos, TimeUnit.NANOSECONDS);
+      }
+    }
     this.delegate.dnsEnd(call, domainName, inetAddressList);
   }
 
   @Override
   public void connectStart(
       @Nonnull Call call, @Nonnull InetSocketAddress inetSocketAddress, @Nonnull Proxy proxy) {
-    this.connectionStart.mark();
-    this.connectionDurationContext = this.connectionDuration.time();
+    this.metrics.connectionStart.mark();
+    this.connectAttempts++;
+    this.connecting = true;
+    if (this.timed) {
+      this.connectStartNanos = System.nanoTime();
+    }
     this.delegate.connectStart(call, inetSocketAddress, proxy);
   }
 
   @Override
   public void secureConnectStart(@Nonnull Call call) {
+    if (this.timed) {
+      this.secureConnectStartNanos = System.nanoTime();
+    }
+    this.secureConnecting = true;
     this.delegate.secureConnectStart(call);
   }
 
   @Override
   public void secureConnectEnd(@Nonnull Call call, @Nullable Handshake handshake) {
+    if (this.timed) {
+      this.metrics.tlsHandshakeDuration.update(
+          System.nanoTime() - this.secureConnectStartNanos, TimeUnit.NANOSECONDS);
+    }
+    this.secureConnecting = false;
+    if (handshake != null) {
+      this.metrics.tlsVersion(handshake.tlsVersion()).mark();
+      this.metrics.cipherSuite(handshake.cipherSuite()).mark();
+      this.secureConnected = true;
+    }
     this.delegate.secureConnectEnd(call, handshake);
   }
 
@@ -163,8 +319,14 @@ final class InstrumentedEventListener extends EventListener {
       @Nonnull InetSocketAddress inetSocketAddress,
       @Nonnull Proxy proxy,
       @Nullable Protocol protocol) {
-    this.connectionDurationContext.stop();
-    this.connectionEnd.mark();
+    this.metrics.connectionEnd.mark();
+    if (protocol != null) {
+      this.metrics.connectionProtocol(protocol).mark();
+    }
+    this.connectedSinceAcquired = true;
+    if (this.timed) {
+      recordConnectDuration();
+    }
     this.delegate.connectEnd(call, inetSocketAddress, proxy, protocol);
   }
 
@@ -175,45 +337,137 @@ final class InstrumentedEventListener extends EventListener {
       @Nonnull Proxy proxy,
       @Nullable Protocol protocol,
       @Nonnull IOException ioe) {
-    this.connectionDurationContext.stop();
-    this.connectionFailed.mark();
+    this.metrics.connectionFailed.mark();
+    this.metrics.connectionFailed(FailureCause.of(ioe, call.isCanceled(), true)).mark();
+    if (this.secureConnecting) {
+      this.metrics.tlsHandshakeFailed.mark();
+      this.secureConnecting = false;
+    }
+    if (this.timed) {
+      recordConnectDuration();
+    }
+    if (this.host != null) {
+      this.host.connectionFailed.mark();
+    }
     this.delegate.connectFailed(call, inetSocketAddress, proxy, protocol, ioe);
   }
 
+  /** Records the duration of the latest connect attempt, whether it succeeded or failed. */
+  private void recordConnectDuration() {
+    long nanos = System.nanoTime() - this.connectStartNanos;
+    this.metrics.connectionDuration.update(nanos, TimeUnit.NANOSECONDS);
+    if (this.host != null) {
+      this.host.connectionDuration.update(nanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
   @Override
   public void connectionAcquired(@Nonnull Call call, @Nonnull Connection connection) {
-    this.connectionAcquired.mark();
+    this.metrics.connectionAcquired.mark();
+    this.connectionAcquired = true;
+    this.protocol = connection.protocol();
+    if (this.pool != null) {
+      boolean isNew = this.connectedSinceAcquired;
+      this.pool.acquired(connection, isNew);
+      if (this.timed && this.pool.timed()) {
+        long now = System.nanoTime();
+        this.pool.recordWait(now - this.acquireStartNanos);
+        if (!isNew) {
+          this.pool.recordReuse(connection, now);
+        }
+      }
+    }
+    this.connectedSinceAcquired = false;
+    this.connecting = false;
+    if (this.secureConnected) {
+      recordResumption(connection);
+      this.secureConnected = false;
+    }
     this.delegate.connectionAcquired(call, connection);
   }
 
+  /**
+   * Classifies the handshake of a new connection as resumed or full. A resumed session carries the
+   * values bound to the session it resumes, so it's already marked by the handshake that created
+   * it, whereas a full handshake starts a session that isn't marked yet.
+   */
+  private void recordResumption(Connection connection) {
+    Socket socket = connection.socket();
+    if (!(socket instanceof SSLSocket)) return;
+    SSLSession session = ((SSLSocket) socket).getSession();
+    if (session.getValue(HANDSHAKE_RECORDED) != null) {
+      this.metrics.tlsHandshakeResumed.mark();
+    } else {
+      session.putValue(HANDSHAKE_RECORDED, Boolean.TRUE);
+      this.metrics.tlsHandshakeFull.mark();
+    }
+  }
+
   @Override
   public void connectionReleased(@Nonnull Call call, @Nonnull Connection connection) {
-    this.connectionReleased.mark();
+    this.metrics.connectionReleased.mark();
+    if (this.pool != null) {
+      this.pool.released(connection);
+      if (this.timed) {
+        this.acquireStartNanos = System.nanoTime();
+      }
+    }
     this.delegate.connectionReleased(call, connection);
   }
 
   @Override
   public void requestHeadersStart(@Nonnull Call call) {
+    if (this.timed) {
+      this.phaseStartNanos = System.nanoTime();
+    }
+    if (this.exchanges > 0) {
+      this.metrics.followUp(this.lastResponseCode).mark();
+    }
+    this.exchanges++;
+    this.lastResponseCode = 0;
     this.delegate.requestHeadersStart(call);
   }
 
   @Override
   public void requestHeadersEnd(@Nonnull Call call, @Nonnull Request request) {
+    long byteCount = request.headers().byteCount();
+    if (this.timed) {
+      this.requestEndNanos = System.nanoTime();
+      this.metrics.requestHeadersDuration.update(
+          this.requestEndNanos - this.phaseStartNanos, TimeUnit.NANOSECONDS);
+    }
+    if (this.sized) {
+      this.metrics.requestHeadersSize.update(byteCount);
+    }
+    this.metrics.bytesSent.mark(byteCount);
     this.delegate.requestHeadersEnd(call, request);
   }
 
   @Override
   public void requestBodyStart(@Nonnull Call call) {
+    if (this.timed) {
+      this.phaseStartNanos = System.nanoTime();
+    }
     this.delegate.requestBodyStart(call);
   }
 
   @Override
   public void requestBodyEnd(@Nonnull Call call, long byteCount) {
+    if (this.timed) {
+      this.requestEndNanos = System.nanoTime();
+      this.metrics.requestBodyDuration.update(
+          this.requestEndNanos - this.phaseStartNanos, TimeUnit.NANOSECONDS);
+    }
+    if (this.sized) {
+      this.metrics.requestBodySize.update(byteCount);
+    }
+    this.metrics.bytesSent.mark(byteCount);
     this.delegate.requestBodyEnd(call, byteCount);
   }
 
   @Override
   public void requestFailed(@Nonnull Call call, @Nonnull IOException ioe) {
+    this.lastResponseCode = 0;
     this.delegate.requestFailed(call, ioe);
   }
 
@@ -224,35 +478,116 @@ final class InstrumentedEventListener extends EventListener {
 
   @Override
   public void responseHeadersEnd(@Nonnull Call call, @Nonnull Response response) {
+    // The time the server took to respond once the request was sent, i.e. the time to first byte.
+    // OkHttp signals responseHeadersStart before it blocks reading, so the wait can only be told
+    // apart from the read once the headers, which usually arrive in one packet, have been read.
+    if (this.requestEndNanos != 0) {
+      this.metrics.serverWaitDuration.update(
+          System.nanoTime() - this.requestEndNanos, TimeUnit.NANOSECONDS);
+      this.requestEndNanos = 0;
+    }
+    this.lastResponseCode = response.code();
+    long byteCount = response.headers().byteCount();
+    if (this.sized) {
+      this.metrics.responseHeadersSize.update(byteCount);
+    }
+    this.metrics.bytesReceived.mark(byteCount);
     this.delegate.responseHeadersEnd(call, response);
   }
 
   @Override
   public void responseBodyStart(@Nonnull Call call) {
+    if (this.timed) {
+      this.phaseStartNanos = System.nanoTime();
+    }
     this.delegate.responseBodyStart(call);
   }
 
   @Override
   public void responseBodyEnd(@Nonnull Call call, long byteCount) {
+    if (this.timed) {
+      this.metrics.responseBodyDuration.update(
+          System.nanoTime() - this.phaseStartNanos, TimeUnit.NANOSECONDS);
+    }
+    if (this.sized) {
+      this.metrics.responseBodySize.update(byteCount);
+    }
+    this.metrics.bytesReceived.mark(byteCount);
     this.delegate.responseBodyEnd(call, byteCount);
   }
 
   @Override
   public void responseFailed(@Nonnull Call call, @Nonnull IOException ioe) {
+    this.lastResponseCode = 0;
     this.delegate.responseFailed(call, ioe);
   }
 
+  /**
+   * Counts the call by whether it was served by a pooled connection, or had to connect to a new
+   * one, and by the protocol of the connection it acquired last, if it got as far as acquiring a
+   * connection. A call that followed a redirect or retried is counted once.
+   */
+  private void recordConnectionUse() {
+    if (!this.connectionAcquired) return;
+    this.metrics.callProtocol(this.protocol).mark();
+    if (this.connectAttempts > 0) {
+      this.metrics.callNewConnection.mark();
+    } else {
+      this.metrics.callReusedConnection.mark();
+    }
+  }
+
+  /** Records the duration of a call that's timed, once it has ended or failed, and returns it. */
+  private long recordCallDuration() {
+    long durationNanos = System.nanoTime() - this.callStartNanos;
+    this.metrics.callDuration.update(durationNanos, TimeUnit.NANOSECONDS);
+    if (this.connectAttempts > 0) {
+      this.metrics.connectAttempts.update(this.connectAttempts);
+    }
+    if (this.exchanges > 0) {
+      this.metrics.networkAttempts.update(this.exchanges);
+    }
+    if (this.connectionAcquired) {
+      Timer timer =
+          this.connectAttempts > 0
+              ? this.metrics.callNewConnectionDuration
+              : this.metrics.callReusedConnectionDuration;
+      timer.update(durationNanos, TimeUnit.NANOSECONDS);
+    }
+    if (this.host != null) {
+      this.host.callDuration.update(durationNanos, TimeUnit.NANOSECONDS);
+    }
+    return durationNanos;
+  }
+
   @Override
   public void callEnd(@Nonnull Call call) {
-    this.callDurationContext.stop();
-    this.callEnd.mark();
+    this.metrics.callEnd.mark();
+    recordConnectionUse();
+    if (this.timed) {
+      recordCallDuration();
+    }
+    if (this.dispatcher != null && this.timed) {
+      this.dispatcher.callFinished(call);
+    }
     this.delegate.callEnd(call);
   }
 
   @Override
   public void callFailed(@Nonnull Call call, @Nonnull IOException ioe) {
-    this.callDurationContext.stop();
-    this.callFailed.mark();
+    this.metrics.callFailed.mark();
+    this.metrics.callFailed(FailureCause.of(ioe, call.isCanceled(), this.connecting)).mark();
+    recordConnectionUse();
+    if (this.timed) {
+      // How long the call kept the application waiting for nothing.
+      this.metrics.callFailedDuration.update(recordCallDuration(), TimeUnit.NANOSECONDS);
+    }
+    if (this.host != null) {
+      this.host.callFailed.mark();
+    }
+    if (this.dispatcher != null && this.timed) {
+      this.dispatcher.callFinished(call);
+    }
     this.delegate.callFailed(call, ioe);
   }
 }
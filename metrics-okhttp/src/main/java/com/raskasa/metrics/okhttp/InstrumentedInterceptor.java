@@ -20,37 +20,84 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 import okhttp3.Interceptor;
 import okhttp3.Response;
 
 /**
  * An {@link Interceptor} that monitors the number of submitted, running, and completed network
- * requests. Also, keeps a {@link Timer} for the request duration.
+ * requests. Also, keeps a {@link Timer} for the request duration, from {@link
+ * InstrumentationLevel#PHASES} up.
+ *
+ * <p>If the client has a {@link ConcurrencyLimiter}, every request is timed for it, whatever the
+ * level, along with whether the request was dropped: timed out, or turned away by a server that's
+ * overloaded.
  */
 final class InstrumentedInterceptor implements Interceptor {
+  private final InstrumentationLevels levels;
+  @Nullable private final ConcurrencyLimiter limiter;
   private final Meter submitted;
   private final Counter running;
   private final Meter completed;
   private final Timer duration;
 
-  InstrumentedInterceptor(MetricRegistry registry, String name) {
-    this.submitted = registry.meter(MetricRegistry.name(name, "network-requests-submitted"));
-    this.running = registry.counter(MetricRegistry.name(name, "network-requests-running"));
-    this.completed = registry.meter(MetricRegistry.name(name, "network-requests-completed"));
-    this.duration = registry.timer(MetricRegistry.name(name, "network-requests-duration"));
+  InstrumentedInterceptor(MetricRegistrar registrar, InstrumentationLevels levels, String name) {
+    this(registrar, levels, name, null);
+  }
+
+  InstrumentedInterceptor(
+      MetricRegistrar registrar,
+      InstrumentationLevels levels,
+      String name,
+      @Nullable ConcurrencyLimiter limiter) {
+    this.levels = levels;
+    this.limiter = limiter;
+    this.submitted = registrar.meter(MetricRegistry.name(name, "network-requests-submitted"));
+    this.running = registrar.counter(MetricRegistry.name(name, "network-requests-running"));
+    this.completed = registrar.meter(MetricRegistry.name(name, "network-requests-completed"));
+    this.duration = registrar.timer(MetricRegistry.name(name, "network-requests-duration"));
   }
 
   @Override
   public Response intercept(Chain chain) throws IOException {
-    submitted.mark();
-    running.inc();
-    final Timer.Context context = duration.time();
-    try {
+    InstrumentationLevel level = levels.get(MetricFamily.NETWORK_REQUESTS);
+    boolean recorded = level != InstrumentationLevel.OFF;
+    if (!recorded && limiter == null) {
       return chain.proceed(chain.request());
+    }
+    if (recorded) {
+      submitted.mark();
+      running.inc();
+    }
+    boolean timed = level.atLeast(InstrumentationLevel.PHASES);
+    long start = timed || limiter != null ? System.nanoTime() : 0L;
+    Response response = null;
+    boolean dropped = false;
+    try {
+      response = chain.proceed(chain.request());
+      dropped = response.code() == 429 || response.code() == 503;
+      return response;
+    } catch (InterruptedIOException e) {
+      dropped = true;
+      throw e;
     } finally {
-      context.stop();
-      running.dec();
-      completed.mark();
+      if (timed || limiter != null) {
+        long nanos = System.nanoTime() - start;
+        if (timed) {
+          duration.update(nanos, TimeUnit.NANOSECONDS);
+        }
+        // Requests that failed otherwise, say because the connection was reset, say little about
+        // the server's load, so only those that completed or timed out are sampled.
+        if (limiter != null && (response != null || dropped)) {
+          limiter.sample(chain.request().url(), nanos, dropped);
+        }
+      }
+      if (recorded) {
+        running.dec();
+        completed.mark();
+      }
     }
   }
 }
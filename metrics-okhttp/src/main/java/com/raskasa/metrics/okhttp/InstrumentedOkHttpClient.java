@@ -19,11 +19,10 @@ import static com.codahale.metrics.MetricRegistry.name;
 
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
-import com.codahale.metrics.RatioGauge;
-import java.io.IOException;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.util.List;
+import java.util.Objects;
 import javax.net.SocketFactory;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLSocketFactory;
@@ -43,26 +42,123 @@ import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.WebSocket;
 import okhttp3.WebSocketListener;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /** Wraps an {@link OkHttpClient} in order to provide data about its internals. */
 final class InstrumentedOkHttpClient extends OkHttpClient {
-  private static final Logger LOG = LoggerFactory.getLogger(InstrumentedOkHttpClient.class);
-  private final MetricRegistry registry;
+  private final MetricRegistrar registrar;
   private OkHttpClient rawClient;
   private final String name;
+  private final int maxHosts;
+  private final boolean byRoute;
+  private final double sampleRate;
+  private final InstrumentationLevels levels;
+  private DispatcherMetrics dispatcherMetrics;
+  private ConnectionPoolMetrics connectionPoolMetrics;
+  private final long cacheSizeRefreshNanos;
+  private CacheSizeGauges cacheSizes;
+  private ConcurrencyLimiter concurrencyLimiter;
+  private volatile WebSocketMetrics webSocketMetrics;
 
   InstrumentedOkHttpClient(MetricRegistry registry, OkHttpClient rawClient, String name) {
-    this.rawClient = rawClient;
-    this.registry = registry;
-    this.name = name;
+    this(InstrumentedOkHttpClients.builder(registry).client(rawClient).name(name));
+  }
+
+  InstrumentedOkHttpClient(InstrumentedOkHttpClients.Builder builder) {
+    OkHttpClient client = builder.client != null ? builder.client : new OkHttpClient();
+    // A client derived from another instrumented client drops that client's instrumentation, so
+    // that its calls aren't recorded twice.
+    this.rawClient = withoutInstrumentation(client);
+    this.registrar =
+        new MetricRegistrar(
+            builder.registry,
+            builder.timerSupplier,
+            builder.histogramSupplier,
+            builder.latencyBuckets);
+    this.name = builder.name;
+    this.maxHosts = builder.maxHosts;
+    this.byRoute = builder.byRoute;
+    this.sampleRate = builder.sampleRate;
+    this.levels = builder.levels;
+    this.cacheSizeRefreshNanos = builder.cacheSizeRefreshNanos;
+    if (builder.dnsCacheMaxHosts > 0) {
+      cacheDns(
+          builder.dnsCacheMaxHosts, builder.dnsCacheTtlNanos, builder.dnsCacheNegativeTtlNanos);
+    }
     instrumentHttpCache();
     instrumentConnectionPool();
+    if (builder.concurrencyLimitMax > 0) {
+      limitConcurrency(
+          builder.concurrencyLimitInitial,
+          builder.concurrencyLimitMax,
+          builder.concurrencyLimitMaxHosts);
+    }
+    instrumentResponses();
+    instrumentDispatcher();
     instrumentNetworkRequests();
     instrumentEventListener();
   }
 
+  /**
+   * Returns the instrumented client that {@code client} was derived from with {@link
+   * #newBuilder()}, or null if it wasn't.
+   */
+  static InstrumentedOkHttpClient parentOf(OkHttpClient client) {
+    EventListener.Factory factory = client.eventListenerFactory();
+    return factory instanceof InstrumentedEventListener.Factory
+        ? ((InstrumentedEventListener.Factory) factory).client
+        : null;
+  }
+
+  /**
+   * Returns true if {@code client}, derived from this one, would be instrumented the same way by
+   * {@code builder}: into the same metrics, for the same cache, connection pool, and dispatcher.
+   */
+  boolean canShareWith(OkHttpClient client, InstrumentedOkHttpClients.Builder builder) {
+    return builder.registry == registrar.registry
+        && Objects.equals(builder.name, name)
+        && client.cache() == rawClient.cache()
+        && client.connectionPool() == rawClient.connectionPool()
+        && DispatcherMetrics.instrument(client.dispatcher()) == rawClient.dispatcher();
+  }
+
+  /**
+   * Returns a copy of {@code client} without the interceptors, listener, DNS cache, and concurrency
+   * limit this library adds, or {@code client} itself if it has none of them. Each is looked for on
+   * its own, since a client derived from an instrumented one may have replaced some of them, such
+   * as its event listener, and kept the others.
+   */
+  private static OkHttpClient withoutInstrumentation(OkHttpClient client) {
+    boolean instrumentedListener =
+        client.eventListenerFactory() instanceof InstrumentedEventListener.Factory;
+    if (!instrumentedListener
+        && !(client.dns() instanceof CachingDns)
+        && client.interceptors().stream().noneMatch(InstrumentedOkHttpClient::isInstrumentation)
+        && client.networkInterceptors().stream()
+            .noneMatch(InstrumentedOkHttpClient::isInstrumentation)) {
+      return client;
+    }
+    OkHttpClient.Builder builder = client.newBuilder();
+    builder.interceptors().removeIf(InstrumentedOkHttpClient::isInstrumentation);
+    builder.networkInterceptors().removeIf(InstrumentedOkHttpClient::isInstrumentation);
+    if (instrumentedListener) {
+      builder.eventListenerFactory(
+          ((InstrumentedEventListener.Factory) client.eventListenerFactory()).delegate);
+    }
+    if (client.dns() instanceof CachingDns) {
+      builder.dns(((CachingDns) client.dns()).delegate());
+    }
+    return builder.build();
+  }
+
+  /** Returns true if {@code interceptor} is one this library adds. */
+  private static boolean isInstrumentation(Interceptor interceptor) {
+    return interceptor instanceof DispatcherMetrics.ExecutionInterceptor
+        || interceptor instanceof CacheOutcomeInterceptor
+        || interceptor instanceof ResponseStatusInterceptor
+        || interceptor instanceof ConcurrencyLimiter.LimitingInterceptor
+        || interceptor instanceof InstrumentedInterceptor;
+  }
+
   /**
    * Generates an identifier, with a common prefix, in order to uniquely identify the {@code metric}
    * in the registry.
@@ -79,10 +175,48 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
     return name(OkHttpClient.class, name, metric);
   }
 
+  /**
+   * Removes every metric this client registered, so that neither the metrics nor the gauges' view
+   * of this client stay reachable from the registry. The client keeps working, but records into
+   * metrics that are no longer registered, and stops reading its cache's size in the background.
+   */
+  void unregister() {
+    registrar.close();
+    if (cacheSizes != null) {
+      cacheSizes.stop();
+    }
+  }
+
+  private void cacheDns(int maxHosts, long ttlNanos, long negativeTtlNanos) {
+    rawClient =
+        rawClient
+            .newBuilder()
+            .dns(
+                new CachingDns(
+                    rawClient.dns(),
+                    registrar,
+                    name(OkHttpClient.class, this.name),
+                    maxHosts,
+                    ttlNanos,
+                    negativeTtlNanos))
+            .build();
+  }
+
   private void instrumentHttpCache() {
     if (cache() == null) return;
 
-    registry.register(
+    // Only an application interceptor sees whether the cache or the network served a call. It
+    // reads the family's level on every call, so it's installed even if the family is off for now.
+    rawClient =
+        rawClient
+            .newBuilder()
+            .addInterceptor(
+                new CacheOutcomeInterceptor(registrar, levels, name(OkHttpClient.class, this.name)))
+            .build();
+
+    if (levels.get(MetricFamily.CACHE) == InstrumentationLevel.OFF) return;
+
+    registrar.register(
         metricId("cache-request-count"),
         new Gauge<Integer>() {
           @Override
@@ -91,7 +225,7 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
             return rawClient.cache().requestCount();
           }
         });
-    registry.register(
+    registrar.register(
         metricId("cache-hit-count"),
         new Gauge<Integer>() {
           @Override
@@ -100,7 +234,7 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
             return rawClient.cache().hitCount();
           }
         });
-    registry.register(
+    registrar.register(
         metricId("cache-network-count"),
         new Gauge<Integer>() {
           @Override
@@ -109,7 +243,7 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
             return rawClient.cache().networkCount();
           }
         });
-    registry.register(
+    registrar.register(
         metricId("cache-write-success-count"),
         new Gauge<Integer>() {
           @Override
@@ -117,7 +251,7 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
             return rawClient.cache().writeSuccessCount();
           }
         });
-    registry.register(
+    registrar.register(
         metricId("cache-write-abort-count"),
         new Gauge<Integer>() {
           @Override
@@ -125,43 +259,24 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
             return rawClient.cache().writeAbortCount();
           }
         });
-    final Gauge<Long> currentCacheSize =
-        new Gauge<Long>() {
-          @Override
-          public Long getValue() {
-            try {
-              return rawClient.cache().size();
-            } catch (IOException ex) {
-              LOG.error(ex.getMessage(), ex);
-              return -1L;
-            }
-          }
-        };
-    final Gauge<Long> maxCacheSize =
-        new Gauge<Long>() {
-          @Override
-          public Long getValue() {
-            return rawClient.cache().maxSize();
-          }
-        };
-    registry.register(metricId("cache-current-size"), currentCacheSize);
-    registry.register(metricId("cache-max-size"), maxCacheSize);
-    registry.register(
-        metricId("cache-size"),
-        new RatioGauge() {
-          @Override
-          protected Ratio getRatio() {
-            return Ratio.of(currentCacheSize.getValue(), maxCacheSize.getValue());
-          }
-        });
+    cacheSizes = new CacheSizeGauges(rawClient.cache());
+    registrar.register(metricId("cache-current-size"), cacheSizes.currentSize());
+    registrar.register(metricId("cache-max-size"), cacheSizes.maxSize());
+    registrar.register(metricId("cache-size"), cacheSizes.ratio());
+    registrar.register(metricId("cache-size-age"), cacheSizes.age());
+    cacheSizes.start(cacheSizeRefreshNanos);
   }
 
   private void instrumentConnectionPool() {
     if (connectionPool() == null) {
       rawClient = rawClient.newBuilder().connectionPool(new ConnectionPool()).build();
     }
+    if (levels.get(MetricFamily.CONNECTION_POOL) == InstrumentationLevel.OFF) return;
+
+    connectionPoolMetrics =
+        new ConnectionPoolMetrics(registrar, levels, name(OkHttpClient.class, this.name));
 
-    registry.register(
+    registrar.register(
         metricId("connection-pool-total-count"),
         new Gauge<Integer>() {
           @Override
@@ -169,7 +284,7 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
             return rawClient.connectionPool().connectionCount();
           }
         });
-    registry.register(
+    registrar.register(
         metricId("connection-pool-idle-count"),
         new Gauge<Integer>() {
           @Override
@@ -179,26 +294,96 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
         });
   }
 
+  private void limitConcurrency(int initialLimit, int maxLimit, int maxHosts) {
+    concurrencyLimiter =
+        new ConcurrencyLimiter(
+            registrar, name(OkHttpClient.class, this.name), initialLimit, maxLimit, maxHosts);
+
+    // The interceptor runs ahead of the user's interceptors, so calls over the limit fail fast,
+    // but after the dispatcher's and the responses' interceptors, which are added ahead of it.
+    OkHttpClient.Builder builder = rawClient.newBuilder();
+    builder.interceptors().add(0, concurrencyLimiter.interceptor());
+    rawClient = builder.build();
+  }
+
+  private void instrumentResponses() {
+    // The interceptor runs ahead of the user's interceptors, so it sees the responses the
+    // application does.
+    OkHttpClient.Builder builder = rawClient.newBuilder();
+    builder
+        .interceptors()
+        .add(
+            0,
+            new ResponseStatusInterceptor(registrar, levels, name(OkHttpClient.class, this.name)));
+    rawClient = builder.build();
+  }
+
+  private void instrumentDispatcher() {
+    // The dispatcher's gauges are only registered if the family isn't off, but the interceptor is
+    // always installed so that queueing can be timed once the family is turned on.
+    Dispatcher dispatcher = DispatcherMetrics.instrument(rawClient.dispatcher());
+    dispatcherMetrics =
+        new DispatcherMetrics(
+            registrar,
+            levels,
+            dispatcher,
+            name(OkHttpClient.class, this.name),
+            DispatcherMetrics.DEFAULT_MAX_HOSTS);
+
+    // The interceptor must run before any other so the user's interceptors aren't timed as
+    // queueing.
+    OkHttpClient.Builder builder = rawClient.newBuilder().dispatcher(dispatcher);
+    builder.interceptors().add(0, dispatcherMetrics.interceptor());
+    rawClient = builder.build();
+  }
+
   private void instrumentNetworkRequests() {
     rawClient =
         rawClient
             .newBuilder()
             .addNetworkInterceptor(
-                new InstrumentedInterceptor(registry, name(OkHttpClient.class, this.name)))
+                new InstrumentedInterceptor(
+                    registrar, levels, name(OkHttpClient.class, this.name), concurrencyLimiter))
             .build();
   }
 
   private void instrumentEventListener() {
     final EventListener.Factory delegate = this.rawClient.eventListenerFactory();
+    final String listenerName = name(EventListener.class, this.name);
+    final HostMetrics hosts =
+        this.maxHosts > 0
+            ? new HostMetrics(this.registrar, listenerName, this.maxHosts, this.byRoute)
+            : null;
     this.rawClient =
         this.rawClient
             .newBuilder()
             .eventListenerFactory(
                 new InstrumentedEventListener.Factory(
-                    this.registry, delegate, name(EventListener.class, this.name)))
+                    this,
+                    new EventListenerMetrics(this.registrar, listenerName, hosts),
+                    this.dispatcherMetrics,
+                    this.connectionPoolMetrics,
+                    delegate,
+                    this.levels,
+                    this.sampleRate))
             .build();
   }
 
+  /** Returns the web socket metrics, registering them when the first web socket is opened. */
+  private WebSocketMetrics webSocketMetrics() {
+    WebSocketMetrics metrics = webSocketMetrics;
+    if (metrics == null) {
+      synchronized (this) {
+        metrics = webSocketMetrics;
+        if (metrics == null) {
+          metrics = new WebSocketMetrics(registrar, levels, name(OkHttpClient.class, this.name));
+          webSocketMetrics = metrics;
+        }
+      }
+    }
+    return metrics;
+  }
+
   @Override
   public Authenticator authenticator() {
     return rawClient.authenticator();
@@ -209,6 +394,11 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
     return rawClient.cache();
   }
 
+  @Override
+  public int callTimeoutMillis() {
+    return rawClient.callTimeoutMillis();
+  }
+
   @Override
   public CertificatePinner certificatePinner() {
     return rawClient.certificatePinner();
@@ -244,6 +434,11 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
     return rawClient.dns();
   }
 
+  @Override
+  public EventListener.Factory eventListenerFactory() {
+    return rawClient.eventListenerFactory();
+  }
+
   @Override
   public boolean followRedirects() {
     return rawClient.followRedirects();
@@ -281,7 +476,12 @@ final class InstrumentedOkHttpClient extends OkHttpClient {
 
   @Override
   public WebSocket newWebSocket(Request request, WebSocketListener listener) {
-    return rawClient.newWebSocket(request, listener);
+    if (levels.get(MetricFamily.WEB_SOCKETS) == InstrumentationLevel.OFF) {
+      return rawClient.newWebSocket(request, listener);
+    }
+    InstrumentedWebSocket webSocket = new InstrumentedWebSocket(webSocketMetrics(), listener);
+    webSocket.setDelegate(rawClient.newWebSocket(request, webSocket.listener()));
+    return webSocket;
   }
 
   @Override
@@ -15,7 +15,13 @@
  */
 package com.raskasa.metrics.okhttp;
 
+import static java.util.Objects.requireNonNull;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.concurrent.TimeUnit;
 import okhttp3.OkHttpClient;
 
 /** Static factory methods for instrumenting an {@link OkHttpClient}. */
@@ -23,12 +29,12 @@ public final class InstrumentedOkHttpClients {
 
   /** Create and instrument an {@link OkHttpClient}. */
   public static OkHttpClient create(MetricRegistry registry) {
-    return new InstrumentedOkHttpClient(registry, new OkHttpClient(), null);
+    return builder(registry).build();
   }
 
   /** Instrument the given {@link OkHttpClient}. */
   public static OkHttpClient create(MetricRegistry registry, OkHttpClient client) {
-    return new InstrumentedOkHttpClient(registry, client, null);
+    return builder(registry).client(client).build();
   }
 
   /**
@@ -38,7 +44,7 @@ public final class InstrumentedOkHttpClients {
    * situations where you have more than one instrumented client in your application.
    */
   public static OkHttpClient create(MetricRegistry registry, String name) {
-    return new InstrumentedOkHttpClient(registry, new OkHttpClient(), name);
+    return builder(registry).name(name).build();
   }
 
   /**
@@ -48,7 +54,295 @@ public final class InstrumentedOkHttpClients {
    * situations where you have more than one instrumented client in your application.
    */
   public static OkHttpClient create(MetricRegistry registry, OkHttpClient client, String name) {
-    return new InstrumentedOkHttpClient(registry, client, name);
+    return builder(registry).client(client).name(name).build();
+  }
+
+  /**
+   * Removes every metric that instrumenting {@code client} registered. Metrics that are shared with
+   * another open client of the same name stay registered until that client is unregistered too.
+   *
+   * <p>The client itself isn't shut down, and may still be used, but its metrics are no longer
+   * reported. Another client may be instrumented under the same name at any time, whether or not
+   * this one has been unregistered.
+   *
+   * <p>A client derived from an instrumented client with {@link OkHttpClient#newBuilder()} shares
+   * that client's metrics, so unregistering either unregisters both. This does nothing if {@code
+   * client} isn't instrumented.
+   */
+  public static void unregister(OkHttpClient client) {
+    requireNonNull(client, "client == null");
+    InstrumentedOkHttpClient instrumented =
+        client instanceof InstrumentedOkHttpClient
+            ? (InstrumentedOkHttpClient) client
+            : InstrumentedOkHttpClient.parentOf(client);
+    if (instrumented != null) {
+      instrumented.unregister();
+    }
+  }
+
+  /** Returns a builder to configure how an {@link OkHttpClient} is instrumented. */
+  public static Builder builder(MetricRegistry registry) {
+    return new Builder(registry);
+  }
+
+  /** Configures and instruments an {@link OkHttpClient}. */
+  public static final class Builder {
+    final MetricRegistry registry;
+    OkHttpClient client;
+    String name;
+    MetricRegistry.MetricSupplier<Timer> timerSupplier = Timer::new;
+    MetricRegistry.MetricSupplier<Histogram> histogramSupplier =
+        () -> new Histogram(new ExponentiallyDecayingReservoir());
+    int maxHosts;
+    boolean byRoute;
+    double sampleRate = 1.0;
+    InstrumentationLevels levels = new InstrumentationLevels();
+    long cacheSizeRefreshNanos = TimeUnit.SECONDS.toNanos(10);
+    LatencyBuckets latencyBuckets;
+    int dnsCacheMaxHosts;
+    long dnsCacheTtlNanos;
+    long dnsCacheNegativeTtlNanos;
+    int concurrencyLimitInitial;
+    int concurrencyLimitMax;
+    int concurrencyLimitMaxHosts;
+
+    Builder(MetricRegistry registry) {
+      this.registry = requireNonNull(registry, "registry == null");
+    }
+
+    /**
+     * The client to instrument. If not set, a new client with the default configuration is used.
+     */
+    public Builder client(OkHttpClient client) {
+      this.client = requireNonNull(client, "client == null");
+      return this;
+    }
+
+    /**
+     * An identifier for the instrumented client. This is useful in situations where you have more
+     * than one instrumented client in your application.
+     */
+    public Builder name(String name) {
+      this.name = name;
+      return this;
+    }
+
+    /**
+     * Creates every {@link Timer} the instrumented client records into.
+     *
+     * <p>By default, timers use Metrics' default reservoir, which takes a lock on every update. On
+     * clients called from many cores at once, consider a reservoir that doesn't, such as {@link
+     * StripedHistogramReservoir}:
+     *
+     * <pre>{@code
+     * builder.timerSupplier(() -> new Timer(new StripedHistogramReservoir()));
+     * }</pre>
+     *
+     * <p>Timers that are already registered under the same name are reused as they are.
+     */
+    public Builder timerSupplier(MetricRegistry.MetricSupplier<Timer> timerSupplier) {
+      this.timerSupplier = requireNonNull(timerSupplier, "timerSupplier == null");
+      return this;
+    }
+
+    /**
+     * Creates every {@link Histogram} the instrumented client records into, such as the sizes of
+     * request and response bodies.
+     *
+     * <p>Like {@link #timerSupplier}, consider a reservoir that doesn't lock, such as {@link
+     * StripedHistogramReservoir}, for clients called from many cores at once.
+     */
+    public Builder histogramSupplier(MetricRegistry.MetricSupplier<Histogram> histogramSupplier) {
+      this.histogramSupplier = requireNonNull(histogramSupplier, "histogramSupplier == null");
+      return this;
+    }
+
+    /**
+     * Also counts every duration the client times in fixed buckets, bounded by {@code upperBounds}
+     * in {@code unit}. Each timer's buckets are registered as counters next to it, named after
+     * their bound, such as {@code calls-duration.buckets.le-100ms}, up to {@code le-inf}, which
+     * counts every duration.
+     *
+     * <p>Unlike a timer's percentiles, bucket counts can be summed across every process that
+     * reports them, to get the distribution of a whole fleet. Counting a duration takes a binary
+     * search and a {@link java.util.concurrent.atomic.LongAdder} increment, without locking, and
+     * each bucket takes constant memory.
+     */
+    public Builder latencyBuckets(TimeUnit unit, long... upperBounds) {
+      requireNonNull(unit, "unit == null");
+      requireNonNull(upperBounds, "upperBounds == null");
+      this.latencyBuckets = new LatencyBuckets(unit, upperBounds);
+      return this;
+    }
+
+    /**
+     * Also record call, DNS, and connection durations and failures separately for each host the
+     * client calls.
+     *
+     * <p>At most {@code maxHosts} hosts are tracked at once. Once the limit is reached, calling a
+     * new host evicts the host that was called least recently, and removes its metrics from the
+     * registry, so clients that call an unbounded set of hosts don't grow the registry without
+     * bound.
+     */
+    public Builder perHostMetrics(int maxHosts) {
+      if (maxHosts <= 0) throw new IllegalArgumentException("maxHosts <= 0: " + maxHosts);
+      this.maxHosts = maxHosts;
+      this.byRoute = false;
+      return this;
+    }
+
+    /**
+     * Like {@link #perHostMetrics(int)}, but tracks each combination of scheme, host, and port
+     * separately, up to {@code maxRoutes} of them.
+     */
+    public Builder perRouteMetrics(int maxRoutes) {
+      if (maxRoutes <= 0) throw new IllegalArgumentException("maxRoutes <= 0: " + maxRoutes);
+      this.maxHosts = maxRoutes;
+      this.byRoute = true;
+      return this;
+    }
+
+    /**
+     * Records the event listener's durations and sizes for only a fraction of calls, chosen at
+     * random when each call is created. For example, {@code sampleRate(0.01)} times one call in a
+     * hundred on average.
+     *
+     * <p>Every call is still counted, so meters such as {@code calls-start} and {@code bytes-sent}
+     * stay exact, while the event listener's timers and histograms, and {@code
+     * dispatcher-queue-duration}, hold an unbiased sample of calls. Note that their count is then
+     * the number of calls sampled, not the number of calls made. The event listener skips reading
+     * the clock for calls that aren't sampled, which makes them noticeably cheaper on clients that
+     * make many calls per second.
+     *
+     * <p>Sampling doesn't apply to the timers kept by interceptors: {@code
+     * network-requests-duration}, {@code responses-*-duration}, and {@code cache-*-duration} still
+     * time every call, and so does the concurrency limit.
+     *
+     * <p>Defaults to 1, which records every call.
+     */
+    public Builder sampleRate(double sampleRate) {
+      if (!(sampleRate > 0.0 && sampleRate <= 1.0)) {
+        throw new IllegalArgumentException("sampleRate not in (0, 1]: " + sampleRate);
+      }
+      this.sampleRate = sampleRate;
+      return this;
+    }
+
+    /**
+     * The handle that decides how much of each family of metrics is recorded, and that can change
+     * it while the client is in use. The same handle may be shared by several clients. Defaults to
+     * a handle of the client's own, which records every family in {@link InstrumentationLevel#FULL
+     * full}.
+     */
+    public Builder levels(InstrumentationLevels levels) {
+      this.levels = requireNonNull(levels, "levels == null");
+      return this;
+    }
+
+    /**
+     * Records {@code family} at {@code level}. This sets the level on the handle passed to {@link
+     * #levels}, so call that first if there is one.
+     */
+    public Builder level(MetricFamily family, InstrumentationLevel level) {
+      this.levels.set(family, level);
+      return this;
+    }
+
+    /**
+     * How often the size of the client's {@link okhttp3.Cache} is read for its gauges. Reading it
+     * can touch the disk, so it's read on a background thread rather than when the gauges are
+     * reported, and {@code cache-size-age} reports how old the last reading is. Defaults to 10
+     * seconds.
+     */
+    public Builder cacheSizeRefreshInterval(long interval, TimeUnit unit) {
+      requireNonNull(unit, "unit == null");
+      if (interval <= 0) throw new IllegalArgumentException("interval <= 0: " + interval);
+      this.cacheSizeRefreshNanos = unit.toNanos(interval);
+      return this;
+    }
+
+    /**
+     * Caches the addresses the client's {@link okhttp3.Dns} resolves, in process, for up to {@code
+     * maxHosts} hosts. Addresses are cached for {@code ttl}, and hosts that fail to resolve for
+     * {@code negativeTtl}. Hosts in use are refreshed in the background before they expire, and
+     * concurrent lookups of a host that isn't cached share a single resolution.
+     *
+     * <p>The cache is recorded by the {@code dns-cache-hits}, {@code -misses}, {@code -refreshes},
+     * and {@code -stale-served} meters, and the {@code dns-cache-size} gauge.
+     */
+    public Builder dnsCache(int maxHosts, long ttl, long negativeTtl, TimeUnit unit) {
+      requireNonNull(unit, "unit == null");
+      if (maxHosts <= 0) throw new IllegalArgumentException("maxHosts <= 0: " + maxHosts);
+      if (ttl <= 0) throw new IllegalArgumentException("ttl <= 0: " + ttl);
+      if (negativeTtl < 0) throw new IllegalArgumentException("negativeTtl < 0: " + negativeTtl);
+      this.dnsCacheMaxHosts = maxHosts;
+      this.dnsCacheTtlNanos = unit.toNanos(ttl);
+      this.dnsCacheNegativeTtlNanos = unit.toNanos(negativeTtl);
+      return this;
+    }
+
+    /**
+     * Limits how many calls the client has in flight at once, and fails the calls over the limit
+     * fast, with a {@link ConcurrencyLimitExceededException}, rather than let them queue up behind
+     * a server that's slowing down.
+     *
+     * <p>The limit starts at {@code initialLimit} and adapts, between 1 and {@code maxLimit}, to
+     * the latency of the client's network requests. It grows while latency holds steady, and
+     * shrinks once latency rises well above its long-term average, or requests time out, or servers
+     * answer {@code 429} or {@code 503}. Calls are limited after they leave the dispatcher's queue,
+     * so the {@link okhttp3.Dispatcher}'s own limits on asynchronous calls should be at least
+     * {@code maxLimit}.
+     *
+     * <p>The limit is reported by the {@code concurrency-limit} and {@code
+     * concurrency-limit-in-flight} gauges, and the calls turned away by the {@code
+     * concurrency-limit-rejected} meter and as {@code calls-failed.rejected}. Limiting works
+     * whatever the {@link #level levels} of the client's metrics.
+     */
+    public Builder concurrencyLimit(int initialLimit, int maxLimit) {
+      if (initialLimit <= 0) {
+        throw new IllegalArgumentException("initialLimit <= 0: " + initialLimit);
+      }
+      if (maxLimit < initialLimit) {
+        throw new IllegalArgumentException("maxLimit < initialLimit: " + maxLimit);
+      }
+      this.concurrencyLimitInitial = initialLimit;
+      this.concurrencyLimitMax = maxLimit;
+      this.concurrencyLimitMaxHosts = 0;
+      return this;
+    }
+
+    /**
+     * Like {@link #concurrencyLimit(int, int)}, but limits each host the client calls separately,
+     * so that a host that slows down doesn't take the calls to other hosts with it. Each host's
+     * limit is reported under {@code hosts.<host>}, and at most {@code maxHosts} hosts are limited
+     * at once, evicting the host called least recently like {@link #perHostMetrics} does.
+     */
+    public Builder concurrencyLimitPerHost(int initialLimit, int maxLimit, int maxHosts) {
+      if (maxHosts <= 0) throw new IllegalArgumentException("maxHosts <= 0: " + maxHosts);
+      concurrencyLimit(initialLimit, maxLimit);
+      this.concurrencyLimitMaxHosts = maxHosts;
+      return this;
+    }
+
+    /**
+     * Instruments the client.
+     *
+     * <p>A client derived from an instrumented client with {@link OkHttpClient#newBuilder()}, say
+     * to change a timeout, already records into that client's metrics. If it's instrumented again
+     * with the same registry and name, and still shares the other client's cache, connection pool,
+     * and dispatcher, it's returned as is, sharing that client's metrics and options. Deriving
+     * clients this way is cheap enough to do for every request. Otherwise the other client's
+     * instrumentation is replaced, so the derived client's calls aren't recorded twice.
+     */
+    public OkHttpClient build() {
+      if (client != null) {
+        InstrumentedOkHttpClient parent = InstrumentedOkHttpClient.parentOf(client);
+        if (parent != null && parent.canShareWith(client, this)) {
+          return client;
+        }
+      }
+      return new InstrumentedOkHttpClient(this);
+    }
   }
 
   private InstrumentedOkHttpClients() {
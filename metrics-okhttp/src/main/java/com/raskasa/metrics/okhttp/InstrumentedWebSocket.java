@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+import okio.Utf8;
+
+/**
+ * A {@link WebSocket} that records the messages sent through it, and whose {@link #listener()}
+ * records how it opens, the messages it receives, and how it ends.
+ *
+ * <p>The application's listener is called with this web socket rather than OkHttp's, so that
+ * messages it sends in reply are recorded too.
+ */
+final class InstrumentedWebSocket implements WebSocket {
+  private final WebSocketMetrics metrics;
+  private final WebSocketListener delegateListener;
+  private final Listener listener = new Listener();
+
+  /** OkHttp's web socket, set once {@link okhttp3.OkHttpClient#newWebSocket} returns it. */
+  private volatile WebSocket delegate;
+
+  /** When the web socket opened, in {@link System#nanoTime()}, or 0 if it hasn't. */
+  private volatile long openedAtNanos;
+
+  InstrumentedWebSocket(
+      @Nonnull WebSocketMetrics metrics, @Nonnull WebSocketListener delegateListener) {
+    this.metrics = metrics;
+    this.delegateListener = delegateListener;
+  }
+
+  WebSocketListener listener() {
+    return listener;
+  }
+
+  void setDelegate(@Nonnull WebSocket delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public Request request() {
+    return delegate.request();
+  }
+
+  @Override
+  public long queueSize() {
+    return delegate.queueSize();
+  }
+
+  @Override
+  public boolean send(String text) {
+    boolean enqueued = delegate.send(text);
+    if (enqueued) {
+      InstrumentationLevel level = metrics.level();
+      if (level != InstrumentationLevel.OFF) {
+        metrics.sentText.mark();
+      }
+      if (level == InstrumentationLevel.FULL) {
+        // Sizes are in UTF-8 bytes, as sent, for text and binary messages alike.
+        metrics.sentTextSize.update(Utf8.size(text));
+      }
+    }
+    return enqueued;
+  }
+
+  @Override
+  public boolean send(ByteString bytes) {
+    boolean enqueued = delegate.send(bytes);
+    if (enqueued) {
+      InstrumentationLevel level = metrics.level();
+      if (level != InstrumentationLevel.OFF) {
+        metrics.sentBinary.mark();
+      }
+      if (level == InstrumentationLevel.FULL) {
+        metrics.sentBinarySize.update(bytes.size());
+      }
+    }
+    return enqueued;
+  }
+
+  @Override
+  public boolean close(int code, @Nullable String reason) {
+    return delegate.close(code, reason);
+  }
+
+  @Override
+  public void cancel() {
+    delegate.cancel();
+  }
+
+  private void ended(int code, @Nullable Throwable cause) {
+    metrics.ended(this, code, cause);
+    long openedAt = openedAtNanos;
+    if (openedAt != 0L && metrics.level().atLeast(InstrumentationLevel.PHASES)) {
+      metrics.recordDuration(System.nanoTime() - openedAt);
+    }
+  }
+
+  private final class Listener extends WebSocketListener {
+    @Override
+    public void onOpen(WebSocket webSocket, Response response) {
+      // OkHttp may open the web socket before newWebSocket() returns it.
+      delegate = webSocket;
+      openedAtNanos = Math.max(System.nanoTime(), 1L);
+      metrics.opened(InstrumentedWebSocket.this);
+      delegateListener.onOpen(InstrumentedWebSocket.this, response);
+    }
+
+    @Override
+    public void onMessage(WebSocket webSocket, String text) {
+      InstrumentationLevel level = metrics.level();
+      if (level != InstrumentationLevel.OFF) {
+        metrics.receivedText.mark();
+      }
+      if (level == InstrumentationLevel.FULL) {
+        metrics.receivedTextSize.update(Utf8.size(text));
+      }
+      delegateListener.onMessage(InstrumentedWebSocket.this, text);
+    }
+
+    @Override
+    public void onMessage(WebSocket webSocket, ByteString bytes) {
+      InstrumentationLevel level = metrics.level();
+      if (level != InstrumentationLevel.OFF) {
+        metrics.receivedBinary.mark();
+      }
+      if (level == InstrumentationLevel.FULL) {
+        metrics.receivedBinarySize.update(bytes.size());
+      }
+      delegateListener.onMessage(InstrumentedWebSocket.this, bytes);
+    }
+
+    @Override
+    public void onClosing(WebSocket webSocket, int code, String reason) {
+      delegateListener.onClosing(InstrumentedWebSocket.this, code, reason);
+    }
+
+    @Override
+    public void onClosed(WebSocket webSocket, int code, String reason) {
+      ended(code, null);
+      delegateListener.onClosed(InstrumentedWebSocket.this, code, reason);
+    }
+
+    @Override
+    public void onFailure(WebSocket webSocket, Throwable t, @Nullable Response response) {
+      delegate = webSocket;
+      ended(0, t);
+      delegateListener.onFailure(InstrumentedWebSocket.this, t, response);
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+
+/**
+ * The fixed upper bounds that {@link BucketedTimer}s count durations against, and the names of
+ * their buckets, such as {@code le-100ms}. The last bucket, {@code le-inf}, has no bound.
+ */
+final class LatencyBuckets {
+  private final long[] boundsNanos;
+  final String[] names;
+
+  LatencyBuckets(@Nonnull TimeUnit unit, @Nonnull long[] upperBounds) {
+    if (upperBounds.length == 0) throw new IllegalArgumentException("no upper bounds");
+    this.boundsNanos = new long[upperBounds.length];
+    this.names = new String[upperBounds.length + 1];
+    for (int i = 0; i < upperBounds.length; i++) {
+      if (upperBounds[i] <= 0 || (i > 0 && upperBounds[i] <= upperBounds[i - 1])) {
+        throw new IllegalArgumentException(
+            "upper bounds aren't positive and increasing: " + Arrays.toString(upperBounds));
+      }
+      boundsNanos[i] = unit.toNanos(upperBounds[i]);
+      names[i] = "le-" + upperBounds[i] + abbreviation(unit);
+    }
+    names[upperBounds.length] = "le-inf";
+  }
+
+  /** Returns the number of buckets, including the last, unbounded one. */
+  int size() {
+    return names.length;
+  }
+
+  /** Returns the index of the first bucket whose bound {@code nanos} doesn't exceed. */
+  int indexOf(long nanos) {
+    int index = Arrays.binarySearch(boundsNanos, nanos);
+    return index >= 0 ? index : -index - 1;
+  }
+
+  private static String abbreviation(TimeUnit unit) {
+    switch (unit) {
+      case NANOSECONDS:
+        return "ns";
+      case MICROSECONDS:
+        return "us";
+      case MILLISECONDS:
+        return "ms";
+      case SECONDS:
+        return "s";
+      case MINUTES:
+        return "m";
+      case HOURS:
+        return "h";
+      default:
+        return "d";
+    }
+  }
+}
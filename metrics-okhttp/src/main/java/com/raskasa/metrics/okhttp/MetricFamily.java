@@ -0,0 +1,40 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+/**
+ * A group of related metrics recorded by an instrumented client, whose {@link InstrumentationLevel
+ * level} can be chosen separately from the others.
+ */
+public enum MetricFamily {
+  /** Gauges of the client's {@link okhttp3.Cache}, if it has one. */
+  CACHE,
+  /** Gauges of the client's {@link okhttp3.ConnectionPool}. */
+  CONNECTION_POOL,
+  /** Gauges of the client's {@link okhttp3.Dispatcher}, and how long calls wait in its queue. */
+  DISPATCHER,
+  /** The {@code network-requests-*} metrics, recorded by a network interceptor. */
+  NETWORK_REQUESTS,
+  /** The metrics recorded by the client's {@link okhttp3.EventListener}. */
+  EVENTS,
+  /** The {@code responses-*} metrics, of the responses calls return to the application. */
+  RESPONSES,
+  /**
+   * The {@code web-sockets-*} metrics, recorded for each web socket the client opens. Web sockets
+   * opened while this family is off aren't recorded at all, even once it's turned back on.
+   */
+  WEB_SOCKETS
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Creates and registers the metrics of an instrumented client, using the suppliers the client was
+ * configured with, and removes them again once the client is {@link #close() closed}.
+ *
+ * <p>Clients with the same name share their meters, counters, timers, and histograms, so a metric
+ * is only removed from the registry once every client that uses it has been closed. Gauges can't be
+ * shared since they read a particular client, so registering a gauge replaces any gauge already
+ * registered under the same name.
+ */
+final class MetricRegistrar {
+  /**
+   * How many open registrars use each metric, per registry. Guarded by itself, which also
+   * serializes adding and removing metrics so that checking a name and registering it is atomic.
+   */
+  private static final Map<MetricRegistry, Map<Metric, int[]>> USERS = new WeakHashMap<>();
+
+  final MetricRegistry registry;
+  private final MetricRegistry.MetricSupplier<Timer> timerSupplier;
+  private final MetricRegistry.MetricSupplier<Histogram> histogramSupplier;
+
+  /** The buckets every timer also counts durations in, or null if they don't. */
+  @Nullable private final LatencyBuckets latencyBuckets;
+
+  /** The metrics this registrar created or reused, by name. */
+  private final Map<String, Metric> metrics = new ConcurrentHashMap<>();
+
+  /** Once closed, metrics are still created but no longer registered. Guarded by {@link #USERS}. */
+  private boolean closed;
+
+  MetricRegistrar(
+      @Nonnull MetricRegistry registry,
+      @Nonnull MetricRegistry.MetricSupplier<Timer> timerSupplier,
+      @Nonnull MetricRegistry.MetricSupplier<Histogram> histogramSupplier) {
+    this(registry, timerSupplier, histogramSupplier, null);
+  }
+
+  MetricRegistrar(
+      @Nonnull MetricRegistry registry,
+      @Nonnull MetricRegistry.MetricSupplier<Timer> timerSupplier,
+      @Nonnull MetricRegistry.MetricSupplier<Histogram> histogramSupplier,
+      @Nullable LatencyBuckets latencyBuckets) {
+    this.registry = registry;
+    this.timerSupplier = timerSupplier;
+    this.histogramSupplier = histogramSupplier;
+    this.latencyBuckets = latencyBuckets;
+  }
+
+  /** Returns a registrar that creates metrics like {@link MetricRegistry} does by default. */
+  static MetricRegistrar withDefaults(@Nonnull MetricRegistry registry) {
+    return new MetricRegistrar(
+        registry, Timer::new, () -> new Histogram(new ExponentiallyDecayingReservoir()));
+  }
+
+  Meter meter(@Nonnull String name) {
+    synchronized (USERS) {
+      return closed ? new Meter() : use(name, registry.meter(name));
+    }
+  }
+
+  Counter counter(@Nonnull String name) {
+    synchronized (USERS) {
+      return closed ? new Counter() : use(name, registry.counter(name));
+    }
+  }
+
+  /**
+   * Returns the timer named {@code name}. If the client counts durations in latency buckets, each
+   * bucket is registered as a counter named after the timer, such as {@code
+   * calls-duration.buckets.le-100ms}.
+   */
+  Timer timer(@Nonnull String name) {
+    synchronized (USERS) {
+      if (closed) return newTimer();
+      Timer timer = use(name, registry.timer(name, this::newTimer));
+      if (timer instanceof BucketedTimer) {
+        BucketedTimer bucketed = (BucketedTimer) timer;
+        String[] bucketNames = bucketed.buckets().names;
+        for (int i = 0; i < bucketNames.length; i++) {
+          String bucketName = MetricRegistry.name(name, "buckets", bucketNames[i]);
+          Counter bucket = bucketed.bucket(i);
+          use(bucketName, registry.counter(bucketName, () -> bucket));
+        }
+      }
+      return timer;
+    }
+  }
+
+  private Timer newTimer() {
+    Timer timer = timerSupplier.newMetric();
+    return latencyBuckets != null ? new BucketedTimer(timer, latencyBuckets) : timer;
+  }
+
+  Histogram histogram(@Nonnull String name) {
+    synchronized (USERS) {
+      return closed
+          ? histogramSupplier.newMetric()
+          : use(name, registry.histogram(name, histogramSupplier));
+    }
+  }
+
+  /** Registers {@code metric}, replacing any metric already registered under {@code name}. */
+  <T extends Metric> T register(@Nonnull String name, @Nonnull T metric) {
+    synchronized (USERS) {
+      if (closed) return metric;
+      registry.remove(name);
+      registry.register(name, metric);
+      return use(name, metric);
+    }
+  }
+
+  /** Stops using the metric named {@code name}, and removes it if no open registrar uses it. */
+  void remove(@Nonnull String name) {
+    synchronized (USERS) {
+      Metric metric = metrics.remove(name);
+      if (metric != null) {
+        release(name, metric);
+      }
+      if (metric instanceof BucketedTimer) {
+        for (String bucketName : ((BucketedTimer) metric).buckets().names) {
+          remove(MetricRegistry.name(name, "buckets", bucketName));
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes every metric this registrar created, unless another open registrar still uses it. Any
+   * metric requested afterwards is created without being registered.
+   */
+  void close() {
+    synchronized (USERS) {
+      if (closed) return;
+      closed = true;
+      List<String> names = new ArrayList<>(metrics.keySet());
+      for (String name : names) {
+        release(name, metrics.remove(name));
+      }
+    }
+  }
+
+  private <T extends Metric> T use(String name, T metric) {
+    // MetricRegistry never returns null, but a mock of it might.
+    if (metric != null && metrics.putIfAbsent(name, metric) == null) {
+      USERS.computeIfAbsent(registry, r -> new IdentityHashMap<>())
+          .computeIfAbsent(metric, m -> new int[1])[0]++;
+    }
+    return metric;
+  }
+
+  private void release(String name, Metric metric) {
+    Map<Metric, int[]> users = USERS.get(registry);
+    int[] count = users != null ? users.get(metric) : null;
+    if (count != null && --count[0] > 0) return;
+    if (count != null) {
+      users.remove(metric);
+    }
+    // Another client may have replaced the metric since, which is then left in place.
+    if (registry.getMetrics().get(name) == metric) {
+      registry.remove(name);
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * An application {@link Interceptor} that counts the responses the application receives by status
+ * class, {@code 1xx} to {@code 5xx}, and times them from {@link InstrumentationLevel#PHASES} up.
+ *
+ * <p>Being an application interceptor, it sees one response per call, however it was produced: from
+ * the cache, after following redirects and retries, or by another interceptor. Calls are timed
+ * until their response is available, not until its body is read.
+ *
+ * <p>The metrics of each class are held in arrays indexed by {@code code / 100}, so recording a
+ * response allocates nothing. Index 0 holds responses whose code is outside 100 to 599. The metrics
+ * are registered once the family is first recorded, so a client built with it off can still have it
+ * turned on later.
+ */
+final class ResponseStatusInterceptor implements Interceptor {
+  private static final String[] CLASSES = {"other", "1xx", "2xx", "3xx", "4xx", "5xx"};
+
+  private final MetricRegistrar registrar;
+  private final InstrumentationLevels levels;
+  private final String name;
+  private volatile Metrics metrics;
+
+  ResponseStatusInterceptor(MetricRegistrar registrar, InstrumentationLevels levels, String name) {
+    this.registrar = registrar;
+    this.levels = levels;
+    this.name = name;
+    if (levels.get(MetricFamily.RESPONSES) != InstrumentationLevel.OFF) {
+      metrics();
+    }
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    InstrumentationLevel level = levels.get(MetricFamily.RESPONSES);
+    if (level == InstrumentationLevel.OFF) {
+      return chain.proceed(chain.request());
+    }
+    Metrics metrics = metrics();
+    boolean timed = level.atLeast(InstrumentationLevel.PHASES);
+    long start = timed ? System.nanoTime() : 0L;
+    Response response;
+    try {
+      response = chain.proceed(chain.request());
+    } catch (IOException | RuntimeException e) {
+      metrics.failed.mark();
+      if (timed) {
+        metrics.failedDuration.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
+      throw e;
+    }
+    int code = response.code();
+    int statusClass = code >= 100 && code < 600 ? code / 100 : 0;
+    metrics.responses[statusClass].mark();
+    if (timed) {
+      metrics.durations[statusClass].update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+    return response;
+  }
+
+  private Metrics metrics() {
+    Metrics result = metrics;
+    if (result == null) {
+      synchronized (this) {
+        result = metrics;
+        if (result == null) {
+          result = new Metrics(registrar, name);
+          metrics = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  private static final class Metrics {
+    final Meter[] responses = new Meter[CLASSES.length];
+    final Timer[] durations = new Timer[CLASSES.length];
+    final Meter failed;
+    final Timer failedDuration;
+
+    Metrics(MetricRegistrar registrar, String name) {
+      for (int i = 0; i < CLASSES.length; i++) {
+        responses[i] = registrar.meter(MetricRegistry.name(name, "responses-" + CLASSES[i]));
+        durations[i] =
+            registrar.timer(MetricRegistry.name(name, "responses-" + CLASSES[i] + "-duration"));
+      }
+      this.failed = registrar.meter(MetricRegistry.name(name, "responses-failed"));
+      this.failedDuration = registrar.timer(MetricRegistry.name(name, "responses-failed-duration"));
+    }
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link Reservoir} that counts values in fixed, log-linear buckets, in the style of an HDR
+ * histogram, and never takes a lock to record one.
+ *
+ * <p>Each power of two is split into 64 equally sized buckets, so any value up to about 2<sup>40
+ * </sup> (about 18 minutes, in nanoseconds) is reported within 1% of its actual value. Larger
+ * values are counted in the last bucket. Since every value is counted rather than sampled, the tail
+ * percentiles stay accurate no matter how many values are recorded.
+ *
+ * <p>Updates increment a counter in one of several stripes, chosen by the recording thread, so
+ * threads on different cores rarely write to the same memory. A stripe is only allocated once a
+ * thread records into it.
+ *
+ * <p>Snapshots cover the values recorded since the start of the previous window. A new window is
+ * started when a snapshot is taken at least {@code window} after the current one started, so with a
+ * reporter that runs less often than the window, each report covers the values recorded since the
+ * last report.
+ */
+public final class StripedHistogramReservoir implements Reservoir {
+  private static final int PRECISION_BITS = 6;
+  private static final int SUB_BUCKETS = 1 << PRECISION_BITS;
+  private static final int MAX_BITS = 40;
+  private static final int BUCKETS = (MAX_BITS - PRECISION_BITS + 1) * SUB_BUCKETS;
+  private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+  private static final int STRIPES =
+      Math.min(16, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+  private final Clock clock;
+  private final long windowNanos;
+  private volatile Window current;
+  private volatile Window previous;
+
+  /** Creates a reservoir whose snapshots cover at least the last minute. */
+  public StripedHistogramReservoir() {
+    this(1, TimeUnit.MINUTES);
+  }
+
+  /** Creates a reservoir whose snapshots cover at least the last {@code window}. */
+  public StripedHistogramReservoir(long window, TimeUnit unit) {
+    this(window, unit, Clock.defaultClock());
+  }
+
+  StripedHistogramReservoir(long window, TimeUnit unit, Clock clock) {
+    this.clock = clock;
+    this.windowNanos = unit.toNanos(window);
+    this.current = new Window(clock.getTick());
+    this.previous = new Window(clock.getTick());
+  }
+
+  @Override
+  public int size() {
+    return getSnapshot().size();
+  }
+
+  @Override
+  public void update(long value) {
+    current.record(bucket(value));
+  }
+
+  @Override
+  public Snapshot getSnapshot() {
+    rotateIfExpired();
+    long[] counts = new long[BUCKETS];
+    previous.addTo(counts);
+    current.addTo(counts);
+    return new BucketSnapshot(counts);
+  }
+
+  private synchronized void rotateIfExpired() {
+    long now = clock.getTick();
+    if (now - current.start >= windowNanos) {
+      previous = current;
+      current = new Window(now);
+    }
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) return (int) Math.max(value, 0);
+    value = Math.min(value, MAX_VALUE);
+    int exponent = 63 - Long.numberOfLeadingZeros(value) - PRECISION_BITS;
+    return (exponent + 1) * SUB_BUCKETS + (int) (value >>> exponent) - SUB_BUCKETS;
+  }
+
+  /** Returns the value in the middle of {@code bucket}, used to represent all of its values. */
+  static long value(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int exponent = bucket / SUB_BUCKETS - 1;
+    long lowest = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << exponent;
+    return lowest + ((1L << exponent) - 1) / 2;
+  }
+
+  /** The buckets counted since {@link #start}, striped by recording thread. */
+  private static final class Window {
+    final long start;
+    private final AtomicReferenceArray<AtomicLongArray> stripes =
+        new AtomicReferenceArray<>(STRIPES);
+
+    Window(long start) {
+      this.start = start;
+    }
+
+    void record(int bucket) {
+      int index = (int) Thread.currentThread().getId() & (STRIPES - 1);
+      AtomicLongArray stripe = stripes.get(index);
+      if (stripe == null) {
+        stripes.compareAndSet(index, null, new AtomicLongArray(BUCKETS));
+        stripe = stripes.get(index);
+      }
+      stripe.getAndIncrement(bucket);
+    }
+
+    void addTo(long[] counts) {
+      for (int i = 0; i < STRIPES; i++) {
+        AtomicLongArray stripe = stripes.get(i);
+        if (stripe == null) continue;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+          counts[bucket] += stripe.get(bucket);
+        }
+      }
+    }
+  }
+
+  /** A snapshot of bucket counts, where each bucket's values are represented by its middle. */
+  private static final class BucketSnapshot extends Snapshot {
+    private final long[] counts;
+    private final long count;
+
+    BucketSnapshot(long[] counts) {
+      this.counts = counts;
+      long count = 0;
+      for (long c : counts) {
+        count += c;
+      }
+      this.count = count;
+    }
+
+    @Override
+    public double getValue(double quantile) {
+      if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+        throw new IllegalArgumentException(quantile + " is not in [0..1]");
+      }
+      if (count == 0) return 0.0;
+
+      long rank = Math.max(1, (long) Math.ceil(quantile * count));
+      long seen = 0;
+      for (int bucket = 0; bucket < counts.length; bucket++) {
+        seen += counts[bucket];
+        if (seen >= rank) return value(bucket);
+      }
+      return getMax();
+    }
+
+    /** Returns the value of each bucket that holds at least one value, in ascending order. */
+    @Override
+    public long[] getValues() {
+      long[] values = new long[counts.length];
+      int size = 0;
+      for (int bucket = 0; bucket < counts.length; bucket++) {
+        if (counts[bucket] > 0) values[size++] = value(bucket);
+      }
+      return Arrays.copyOf(values, size);
+    }
+
+    @Override
+    public int size() {
+      return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public long getMax() {
+      for (int bucket = counts.length - 1; bucket >= 0; bucket--) {
+        if (counts[bucket] > 0) return value(bucket);
+      }
+      return 0;
+    }
+
+    @Override
+    public double getMean() {
+      if (count == 0) return 0.0;
+      double sum = 0;
+      for (int bucket = 0; bucket < counts.length; bucket++) {
+        sum += (double) counts[bucket] * value(bucket);
+      }
+      return sum / count;
+    }
+
+    @Override
+    public long getMin() {
+      for (int bucket = 0; bucket < counts.length; bucket++) {
+        if (counts[bucket] > 0) return value(bucket);
+      }
+      return 0;
+    }
+
+    @Override
+    public double getStdDev() {
+      if (count <= 1) return 0.0;
+      double mean = getMean();
+      double sum = 0;
+      for (int bucket = 0; bucket < counts.length; bucket++) {
+        double diff = value(bucket) - mean;
+        sum += counts[bucket] * diff * diff;
+      }
+      return Math.sqrt(sum / (count - 1));
+    }
+
+    @Override
+    public void dump(OutputStream output) {
+      try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, UTF_8))) {
+        for (long value : getValues()) {
+          out.printf("%d%n", value);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.io.EOFException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import okhttp3.WebSocket;
+
+/**
+ * The metrics recorded by {@link InstrumentedWebSocket}s, shared by every web socket a client
+ * opens.
+ */
+final class WebSocketMetrics {
+  private final InstrumentationLevels levels;
+
+  final Meter opened;
+  final Meter failed;
+  final Timer duration;
+
+  final Meter sentText;
+  final Meter sentBinary;
+  final Histogram sentTextSize;
+  final Histogram sentBinarySize;
+  final Meter receivedText;
+  final Meter receivedBinary;
+  final Histogram receivedTextSize;
+  final Histogram receivedBinarySize;
+
+  /**
+   * Close codes 1000 to 1015, defined by RFC 6455 and the IANA registry, indexed by {@code code -
+   * 1000}.
+   */
+  private final Meter[] closedByCode;
+
+  private final Meter closedByApplication;
+  private final Meter closedOther;
+
+  private final Meter failedTimeout;
+  private final Meter failedEof;
+  private final Meter failedProtocol;
+  private final Meter failedOther;
+
+  /** The web sockets that are open, whose send queues are summed when reported. */
+  private final Set<WebSocket> open = ConcurrentHashMap.newKeySet();
+
+  WebSocketMetrics(
+      @Nonnull MetricRegistrar registrar,
+      @Nonnull InstrumentationLevels levels,
+      @Nonnull String name) {
+    this.levels = levels;
+
+    this.opened = registrar.meter(MetricRegistry.name(name, "web-sockets-opened"));
+    this.failed = registrar.meter(MetricRegistry.name(name, "web-sockets-failed"));
+    this.duration = registrar.timer(MetricRegistry.name(name, "web-sockets-duration"));
+
+    this.sentText = registrar.meter(MetricRegistry.name(name, "web-sockets-sent-text"));
+    this.sentBinary = registrar.meter(MetricRegistry.name(name, "web-sockets-sent-binary"));
+    this.sentTextSize =
+        registrar.histogram(MetricRegistry.name(name, "web-sockets-sent-text-size"));
+    this.sentBinarySize =
+        registrar.histogram(MetricRegistry.name(name, "web-sockets-sent-binary-size"));
+    this.receivedText = registrar.meter(MetricRegistry.name(name, "web-sockets-received-text"));
+    this.receivedBinary = registrar.meter(MetricRegistry.name(name, "web-sockets-received-binary"));
+    this.receivedTextSize =
+        registrar.histogram(MetricRegistry.name(name, "web-sockets-received-text-size"));
+    this.receivedBinarySize =
+        registrar.histogram(MetricRegistry.name(name, "web-sockets-received-binary-size"));
+
+    this.closedByCode = new Meter[16];
+    for (int i = 0; i < closedByCode.length; i++) {
+      closedByCode[i] =
+          registrar.meter(
+              MetricRegistry.name(name, "web-sockets-closed", String.valueOf(1000 + i)));
+    }
+    this.closedByApplication =
+        registrar.meter(MetricRegistry.name(name, "web-sockets-closed", "application"));
+    this.closedOther = registrar.meter(MetricRegistry.name(name, "web-sockets-closed", "other"));
+
+    this.failedTimeout =
+        registrar.meter(MetricRegistry.name(name, "web-sockets-failed", "timeout"));
+    this.failedEof = registrar.meter(MetricRegistry.name(name, "web-sockets-failed", "eof"));
+    this.failedProtocol =
+        registrar.meter(MetricRegistry.name(name, "web-sockets-failed", "protocol"));
+    this.failedOther = registrar.meter(MetricRegistry.name(name, "web-sockets-failed", "other"));
+
+    registrar.register(MetricRegistry.name(name, "web-sockets-open"), (Gauge<Integer>) open::size);
+    registrar.register(
+        MetricRegistry.name(name, "web-sockets-queued-bytes"),
+        (Gauge<Long>)
+            () -> {
+              long queued = 0L;
+              for (WebSocket webSocket : open) {
+                queued += webSocket.queueSize();
+              }
+              return queued;
+            });
+  }
+
+  InstrumentationLevel level() {
+    return levels.get(MetricFamily.WEB_SOCKETS);
+  }
+
+  void opened(@Nonnull WebSocket webSocket) {
+    open.add(webSocket);
+    if (level() != InstrumentationLevel.OFF) {
+      opened.mark();
+    }
+  }
+
+  /** Called once {@code webSocket} is closed, or has failed, with {@code cause} if it failed. */
+  void ended(@Nonnull WebSocket webSocket, int code, @Nullable Throwable cause) {
+    open.remove(webSocket);
+    if (level() == InstrumentationLevel.OFF) return;
+    if (cause != null) {
+      failed.mark();
+      failure(cause).mark();
+    } else {
+      closed(code).mark();
+    }
+  }
+
+  void recordDuration(long nanos) {
+    duration.update(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  private Meter closed(int code) {
+    if (code >= 1000 && code < 1000 + closedByCode.length) {
+      return closedByCode[code - 1000];
+    }
+    // Codes 3000 to 3999 are registered by libraries and frameworks, 4000 to 4999 are private.
+    return code >= 3000 && code <= 4999 ? closedByApplication : closedOther;
+  }
+
+  private Meter failure(Throwable cause) {
+    if (cause instanceof SocketTimeoutException) {
+      // Also how OkHttp reports a ping that wasn't answered within the ping interval.
+      return failedTimeout;
+    } else if (cause instanceof EOFException) {
+      return failedEof;
+    } else if (cause instanceof ProtocolException) {
+      return failedProtocol;
+    }
+    return failedOther;
+  }
+}
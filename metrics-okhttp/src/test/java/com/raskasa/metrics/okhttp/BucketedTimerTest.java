@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.codahale.metrics.Timer;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public final class BucketedTimerTest {
+  private final LatencyBuckets buckets =
+      new LatencyBuckets(TimeUnit.MILLISECONDS, new long[] {10, 100, 1000});
+
+  @Test
+  public void bucketsAreNamedAfterTheirBounds() {
+    assertThat(buckets.names).containsExactly("le-10ms", "le-100ms", "le-1000ms", "le-inf");
+  }
+
+  @Test
+  public void bucketsCountDurationsUpToTheirBound() {
+    Timer delegate = new Timer();
+    BucketedTimer timer = new BucketedTimer(delegate, buckets);
+
+    timer.update(5, TimeUnit.MILLISECONDS);
+    timer.update(10, TimeUnit.MILLISECONDS);
+    timer.update(11, TimeUnit.MILLISECONDS);
+    timer.update(2, TimeUnit.SECONDS);
+    timer.timeSupplier(() -> "instant");
+
+    assertThat(timer.bucket(0).getCount()).isEqualTo(3);
+    assertThat(timer.bucket(1).getCount()).isEqualTo(4);
+    assertThat(timer.bucket(2).getCount()).isEqualTo(4);
+    assertThat(timer.bucket(3).getCount()).isEqualTo(5);
+    assertThat(timer.getCount()).isEqualTo(5);
+    assertThat(delegate.getSnapshot().getMax()).isEqualTo(TimeUnit.SECONDS.toNanos(2));
+  }
+
+  @Test
+  public void boundsMustIncrease() {
+    assertThatThrownBy(() -> new LatencyBuckets(TimeUnit.MILLISECONDS, new long[] {10, 10}))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> new LatencyBuckets(TimeUnit.MILLISECONDS, new long[0]))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Cache;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class CacheSizeGaugesTest {
+  @Rule public TemporaryFolder cacheRule = new TemporaryFolder();
+
+  @Test
+  public void maxSizeIsKnownBeforeTheSizesAreRead() {
+    CacheSizeGauges gauges = new CacheSizeGauges(new Cache(cacheRule.getRoot(), 1024L));
+
+    assertThat(gauges.maxSize().getValue()).isEqualTo(1024L);
+    assertThat(gauges.currentSize().getValue()).isEqualTo(-1L);
+    assertThat(gauges.ratio().getValue()).isNaN();
+    assertThat(gauges.age().getValue()).isEqualTo(-1L);
+  }
+
+  @Test
+  public void sizesStopBeingReadOnceTheCacheIsCollected() throws Exception {
+    Cache cache = new Cache(cacheRule.getRoot(), 1024L);
+    WeakReference<Cache> reference = new WeakReference<>(cache);
+    CacheSizeGauges gauges = new CacheSizeGauges(cache);
+    gauges.start(TimeUnit.MILLISECONDS.toNanos(1));
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (gauges.age().getValue() < 0L && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+    assertThat(gauges.currentSize().getValue()).isEqualTo(0L);
+    cache = null;
+
+    while (reference.get() != null && System.nanoTime() < deadline) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertThat(reference.get()).isNull();
+
+    // Refreshed every millisecond until then, the sizes now grow older.
+    Thread.sleep(200);
+    assertThat(gauges.age().getValue()).isGreaterThanOrEqualTo(100L);
+  }
+}
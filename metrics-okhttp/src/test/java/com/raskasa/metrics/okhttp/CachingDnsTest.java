@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import com.codahale.metrics.MetricRegistry;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.Dns;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class CachingDnsTest {
+  private static final List<InetAddress> ADDRESSES =
+      Collections.singletonList(InetAddress.getLoopbackAddress());
+
+  private final StripedHistogramReservoirTest.ManualClock clock =
+      new StripedHistogramReservoirTest.ManualClock();
+  private final Map<String, AtomicInteger> lookups = new ConcurrentHashMap<>();
+  private volatile CountDownLatch resolving = new CountDownLatch(0);
+  private MetricRegistry registry;
+
+  private final Dns delegate =
+      hostname -> {
+        lookups.computeIfAbsent(hostname, ignored -> new AtomicInteger()).incrementAndGet();
+        try {
+          resolving.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        if (hostname.endsWith(".invalid")) throw new UnknownHostException(hostname);
+        if (hostname.endsWith(".broken")) throw new IllegalStateException(hostname);
+        return ADDRESSES;
+      };
+
+  @Before
+  public void setUp() {
+    registry = new MetricRegistry();
+  }
+
+  @Test
+  public void hostsAreCached() throws Exception {
+    CachingDns dns = cachingDns(10, TimeUnit.MINUTES.toNanos(1));
+
+    assertThat(dns.lookup("example.com")).isEqualTo(ADDRESSES);
+    assertThat(dns.lookup("example.com")).isEqualTo(ADDRESSES);
+
+    assertThat(lookups.get("example.com").get()).isEqualTo(1);
+    assertThat(registry.meter("dns.dns-cache-misses").getCount()).isEqualTo(1);
+    assertThat(registry.meter("dns.dns-cache-hits").getCount()).isEqualTo(1);
+    assertThat(registry.getGauges().get("dns.dns-cache-size").getValue()).isEqualTo(1);
+  }
+
+  @Test
+  public void failuresAreCached() throws Exception {
+    CachingDns dns = cachingDns(10, TimeUnit.MINUTES.toNanos(1));
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        dns.lookup("example.invalid");
+        fail();
+      } catch (UnknownHostException expected) {
+      }
+    }
+    assertThat(lookups.get("example.invalid").get()).isEqualTo(1);
+  }
+
+  @Test
+  public void concurrentMissesShareOneResolution() throws Exception {
+    CachingDns dns = cachingDns(10, TimeUnit.MINUTES.toNanos(1));
+    resolving = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Future<?>[] results = new Future<?>[4];
+      for (int i = 0; i < results.length; i++) {
+        results[i] = executor.submit(() -> dns.lookup("example.com"));
+      }
+      while (lookups.get("example.com") == null) {
+        Thread.sleep(5);
+      }
+      resolving.countDown();
+      for (Future<?> result : results) {
+        assertThat(result.get(10, TimeUnit.SECONDS)).isEqualTo(ADDRESSES);
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(lookups.get("example.com").get()).isEqualTo(1);
+  }
+
+  @Test
+  public void lookupsWaitingForAResolutionThrowItsException() throws Exception {
+    CachingDns dns = cachingDns(10, TimeUnit.MINUTES.toNanos(1));
+    resolving = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Future<?>[] results = new Future<?>[4];
+      for (int i = 0; i < results.length; i++) {
+        results[i] = executor.submit(() -> dns.lookup("example.broken"));
+      }
+      while (lookups.get("example.broken") == null) {
+        Thread.sleep(5);
+      }
+      resolving.countDown();
+      // Failures that aren't UnknownHostException aren't cached, so a lookup that comes too late
+      // to wait resolves the host again, and fails the same way.
+      for (Future<?> result : results) {
+        try {
+          result.get(10, TimeUnit.SECONDS);
+          fail();
+        } catch (ExecutionException expected) {
+          assertThat(expected.getCause())
+              .isInstanceOf(IllegalStateException.class)
+              .hasMessage("example.broken");
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void hostsInUseAreRefreshedBeforeTheyExpire() throws Exception {
+    CachingDns dns = cachingDns(10, TimeUnit.SECONDS.toNanos(1));
+    dns.lookup("example.com");
+
+    // Past three quarters of the TTL, a lookup is served from the cache and refreshes the host.
+    clock.tick += TimeUnit.MILLISECONDS.toNanos(800);
+    resolving = new CountDownLatch(1);
+    assertThat(dns.lookup("example.com")).isEqualTo(ADDRESSES);
+    assertThat(registry.meter("dns.dns-cache-refreshes").getCount()).isEqualTo(1);
+    while (lookups.get("example.com").get() < 2) {
+      Thread.sleep(5);
+    }
+
+    // Once the TTL has passed, the expired addresses are served until the refresh completes.
+    clock.tick += TimeUnit.MILLISECONDS.toNanos(300);
+    assertThat(dns.lookup("example.com")).isEqualTo(ADDRESSES);
+    assertThat(registry.meter("dns.dns-cache-stale-served").getCount()).isEqualTo(1);
+    resolving.countDown();
+
+    assertThat(lookups.get("example.com").get()).isEqualTo(2);
+    assertThat(registry.meter("dns.dns-cache-misses").getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void leastRecentlyUsedHostIsEvicted() throws Exception {
+    CachingDns dns = cachingDns(2, TimeUnit.MINUTES.toNanos(1));
+    for (String hostname : new String[] {"a", "b", "a", "c", "a", "b"}) {
+      clock.tick += TimeUnit.MILLISECONDS.toNanos(1);
+      dns.lookup(hostname + ".example.com");
+    }
+
+    assertThat(lookups.get("a.example.com").get()).isEqualTo(1);
+    assertThat(lookups.get("b.example.com").get()).isEqualTo(2);
+    assertThat(registry.getGauges().get("dns.dns-cache-size").getValue()).isEqualTo(2);
+  }
+
+  private CachingDns cachingDns(int maxHosts, long ttlNanos) {
+    return new CachingDns(
+        delegate,
+        MetricRegistrar.withDefaults(registry),
+        "dns",
+        maxHosts,
+        ttlNanos,
+        ttlNanos,
+        clock);
+  }
+}
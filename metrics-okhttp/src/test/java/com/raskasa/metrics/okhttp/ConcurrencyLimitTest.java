@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public final class ConcurrencyLimitTest {
+  private static final long STEADY = TimeUnit.MILLISECONDS.toNanos(10);
+
+  @Test
+  public void callsOverTheLimitAreTurnedAway() {
+    ConcurrencyLimit limit = new ConcurrencyLimit(2, 10);
+
+    assertThat(limit.tryAcquire()).isTrue();
+    assertThat(limit.tryAcquire()).isTrue();
+    assertThat(limit.tryAcquire()).isFalse();
+    limit.release();
+    assertThat(limit.tryAcquire()).isTrue();
+    assertThat(limit.inFlight()).isEqualTo(2);
+  }
+
+  @Test
+  public void limitGrowsWhileLatencyIsSteadyAndTheLimitIsUsed() {
+    ConcurrencyLimit limit = new ConcurrencyLimit(4, 20);
+
+    for (int i = 0; i < 100; i++) {
+      while (limit.tryAcquire()) {}
+      limit.sample(STEADY, false);
+    }
+
+    assertThat(limit.limit()).isEqualTo(20);
+  }
+
+  @Test
+  public void limitHoldsWhileItIsUnused() {
+    ConcurrencyLimit limit = new ConcurrencyLimit(4, 20);
+
+    for (int i = 0; i < 100; i++) {
+      limit.sample(STEADY, false);
+    }
+
+    assertThat(limit.limit()).isEqualTo(4);
+  }
+
+  @Test
+  public void limitShrinksOnceLatencyRises() {
+    ConcurrencyLimit limit = new ConcurrencyLimit(20, 20);
+    while (limit.tryAcquire()) {}
+    for (int i = 0; i < 100; i++) {
+      limit.sample(STEADY, false);
+    }
+
+    for (int i = 0; i < 20; i++) {
+      limit.sample(STEADY * 5, false);
+    }
+
+    assertThat(limit.limit()).isLessThan(10);
+  }
+
+  @Test
+  public void dropsShrinkTheLimit() {
+    ConcurrencyLimit limit = new ConcurrencyLimit(20, 20);
+
+    limit.sample(STEADY, true);
+    assertThat(limit.limit()).isEqualTo(18);
+    for (int i = 0; i < 100; i++) {
+      limit.sample(STEADY, true);
+    }
+    assertThat(limit.limit()).isEqualTo(ConcurrencyLimit.MIN_LIMIT);
+  }
+
+  @Test
+  public void dropsThatArriveWhileAnotherSampleIsAppliedAreKept() {
+    ConcurrencyLimit limit = new ConcurrencyLimit(20, 20);
+
+    limit.sampling.set(true);
+    limit.sample(STEADY, true);
+    assertThat(limit.limit()).isEqualTo(20);
+    limit.sampling.set(false);
+    limit.sample(STEADY, false);
+
+    assertThat(limit.limit()).isEqualTo(18);
+  }
+
+  @Test
+  public void dropsAreNotLostToContention() throws Exception {
+    int threads = 8;
+    int dropsPerThread = 20;
+    ConcurrencyLimit limit = new ConcurrencyLimit(1_000_000_000, 1_000_000_000);
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  start.await();
+                  for (int j = 0; j < dropsPerThread; j++) {
+                    // Contend with the other threads' latencies as well as their drops.
+                    limit.sample(STEADY, false);
+                    limit.sample(STEADY, true);
+                  }
+                  return null;
+                }));
+      }
+      start.countDown();
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    double expected = 1_000_000_000 * Math.pow(0.9, threads * dropsPerThread);
+    assertThat((double) limit.limit()).isCloseTo(expected, within(1.0));
+  }
+}
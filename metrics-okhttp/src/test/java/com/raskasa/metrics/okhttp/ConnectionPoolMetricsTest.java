@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.MetricRegistry;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.net.SocketFactory;
+import okhttp3.Address;
+import okhttp3.Authenticator;
+import okhttp3.Connection;
+import okhttp3.ConnectionSpec;
+import okhttp3.Dns;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Route;
+import org.junit.Test;
+
+public final class ConnectionPoolMetricsTest {
+  private static final Route ROUTE =
+      new Route(
+          new Address(
+              "localhost",
+              80,
+              Dns.SYSTEM,
+              SocketFactory.getDefault(),
+              null,
+              null,
+              null,
+              Authenticator.NONE,
+              null,
+              Collections.singletonList(Protocol.HTTP_1_1),
+              Collections.singletonList(ConnectionSpec.CLEARTEXT),
+              ProxySelector.getDefault()),
+          Proxy.NO_PROXY,
+          InetSocketAddress.createUnresolved("localhost", 80));
+
+  private final MetricRegistry registry = new MetricRegistry();
+  private final ConnectionPoolMetrics metrics =
+      new ConnectionPoolMetrics(
+          MetricRegistrar.withDefaults(registry), new InstrumentationLevels(), "pool");
+
+  @Test
+  public void multiplexedConnectionsAreInUseOnce() {
+    Connection connection = connection(new Socket(), Protocol.HTTP_2);
+    metrics.acquired(connection, true);
+    metrics.acquired(connection, false);
+    metrics.acquired(connection, false);
+    assertThat(registry.counter("pool.connection-pool-in-use-count").getCount()).isEqualTo(1);
+
+    metrics.released(connection);
+    metrics.released(connection);
+    assertThat(registry.counter("pool.connection-pool-in-use-count").getCount()).isEqualTo(1);
+    metrics.released(connection);
+    assertThat(registry.counter("pool.connection-pool-in-use-count").getCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void closedConnectionsAreForgottenWhenReported() throws IOException {
+    List<Socket> sockets = trackTheMostConnections();
+    for (Socket socket : sockets) {
+      socket.close();
+    }
+
+    // A new connection that finds the most connections tracked doesn't look for closed ones.
+    acquireAndRelease(new Socket());
+    assertThat(registry.histogram("pool.connection-pool-calls-per-connection").getCount())
+        .isEqualTo(0);
+
+    registry.getGauges().get("pool.connection-pool-streams-per-multiplexed-connection").getValue();
+    assertThat(registry.histogram("pool.connection-pool-calls-per-connection").getCount())
+        .isEqualTo(ConnectionPoolMetrics.MAX_TRACKED_CONNECTIONS);
+  }
+
+  @Test
+  public void closedConnectionsAreForgottenOnceAsManyNewOnesAreAcquired() throws IOException {
+    List<Socket> sockets = trackTheMostConnections();
+    for (Socket socket : sockets) {
+      socket.close();
+    }
+
+    for (int i = 0; i < ConnectionPoolMetrics.MAX_TRACKED_CONNECTIONS; i++) {
+      acquireAndRelease(new Socket());
+    }
+
+    assertThat(registry.histogram("pool.connection-pool-calls-per-connection").getCount())
+        .isEqualTo(ConnectionPoolMetrics.MAX_TRACKED_CONNECTIONS);
+  }
+
+  private List<Socket> trackTheMostConnections() {
+    List<Socket> sockets = new ArrayList<>();
+    for (int i = 0; i < ConnectionPoolMetrics.MAX_TRACKED_CONNECTIONS; i++) {
+      Socket socket = new Socket();
+      sockets.add(socket);
+      acquireAndRelease(socket);
+    }
+    return sockets;
+  }
+
+  private void acquireAndRelease(Socket socket) {
+    Connection connection = connection(socket, Protocol.HTTP_1_1);
+    metrics.acquired(connection, true);
+    metrics.released(connection);
+  }
+
+  private static Connection connection(Socket socket, Protocol protocol) {
+    return new Connection() {
+      @Override
+      public Route route() {
+        return ROUTE;
+      }
+
+      @Override
+      public Socket socket() {
+        return socket;
+      }
+
+      @Override
+      public Handshake handshake() {
+        return null;
+      }
+
+      @Override
+      public Protocol protocol() {
+        return protocol;
+      }
+    };
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.MetricRegistry;
+import okhttp3.Call;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import org.junit.Test;
+
+public final class DispatcherMetricsTest {
+  private final MetricRegistry registry = new MetricRegistry();
+  private final OkHttpClient client = new OkHttpClient();
+
+  @Test
+  public void leastRecentlyCalledHostsLoseTheirGauges() {
+    DispatcherMetrics metrics =
+        new DispatcherMetrics(
+            MetricRegistrar.withDefaults(registry),
+            new InstrumentationLevels(InstrumentationLevel.FULL),
+            new Dispatcher(),
+            "client",
+            2);
+
+    metrics.callStarted(call("http://a.example/"), null);
+    metrics.callStarted(call("http://b.example/"), null);
+    metrics.callStarted(call("http://a.example/"), null);
+    metrics.callStarted(call("http://c.example/"), null);
+
+    assertThat(registry.getGauges().keySet())
+        .contains(
+            "client.dispatcher-hosts.a.example.running-calls",
+            "client.dispatcher-hosts.a.example.queued-calls",
+            "client.dispatcher-hosts.c.example.running-calls",
+            "client.dispatcher-hosts.c.example.queued-calls")
+        .doesNotContain(
+            "client.dispatcher-hosts.b.example.running-calls",
+            "client.dispatcher-hosts.b.example.queued-calls");
+  }
+
+  @Test
+  public void clientsOfTheSameDispatcherShareTheInstrumentedOne() {
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequests(7);
+    dispatcher.setMaxRequestsPerHost(3);
+
+    Dispatcher instrumented = DispatcherMetrics.instrument(dispatcher);
+    assertThat(instrumented).isNotSameAs(dispatcher);
+    assertThat(instrumented.getMaxRequests()).isEqualTo(7);
+    assertThat(instrumented.getMaxRequestsPerHost()).isEqualTo(3);
+    assertThat(DispatcherMetrics.instrument(dispatcher)).isSameAs(instrumented);
+    assertThat(DispatcherMetrics.instrument(instrumented)).isSameAs(instrumented);
+
+    // Shutting the instrumented dispatcher's executor down shuts down the one it runs calls on.
+    instrumented.executorService().shutdown();
+    assertThat(dispatcher.executorService().isShutdown()).isTrue();
+  }
+
+  private Call call(String url) {
+    return client.newCall(new Request.Builder().url(url).build());
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public final class EvictionRingTest {
+  @Test
+  public void smallRingsEvictExactlyInOrder() {
+    EvictionRing<Integer> ring = new EvictionRing<>(3, Integer::compare);
+    assertThat(ring.add(5)).isNull();
+    assertThat(ring.add(2)).isNull();
+    assertThat(ring.add(7)).isNull();
+    assertThat(ring.size()).isEqualTo(3);
+
+    assertThat(ring.add(9)).isEqualTo(2);
+    assertThat(ring.add(8)).isEqualTo(5);
+    assertThat(ring.add(10)).isEqualTo(7);
+    assertThat(ring.size()).isEqualTo(3);
+  }
+
+  @Test
+  public void evictionsCompareABoundedNumberOfEntries() {
+    int capacity = 10_000;
+    AtomicInteger comparisons = new AtomicInteger();
+    EvictionRing<Integer> ring =
+        new EvictionRing<>(
+            capacity,
+            (a, b) -> {
+              comparisons.incrementAndGet();
+              return Integer.compare(a, b);
+            });
+    for (int i = 0; i < capacity; i++) {
+      ring.add(i);
+    }
+    assertThat(comparisons.get()).isZero();
+
+    Integer evicted = ring.add(capacity);
+    assertThat(evicted).isNotNull().isLessThan(EvictionRing.SAMPLE_SIZE);
+    assertThat(comparisons.get()).isEqualTo(EvictionRing.SAMPLE_SIZE - 1);
+  }
+
+  @Test
+  public void everyEntryIsComparedInTurn() {
+    int capacity = 64;
+    EvictionRing<Integer> ring = new EvictionRing<>(capacity, Integer::compare);
+    for (int i = 0; i < capacity; i++) {
+      ring.add(i);
+    }
+    // Each entry added sorts after every original one, so the originals go first, in any order.
+    Set<Integer> evicted = new HashSet<>();
+    for (int i = 0; i < capacity; i++) {
+      evicted.add(ring.add(capacity + i));
+    }
+    assertThat(evicted).hasSize(capacity).allMatch(entry -> entry < capacity);
+  }
+}
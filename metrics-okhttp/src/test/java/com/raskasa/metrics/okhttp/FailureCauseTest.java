@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import javax.net.ssl.SSLHandshakeException;
+import org.junit.Test;
+
+public final class FailureCauseTest {
+  @Test
+  public void timeoutsAreToldApart() {
+    assertThat(FailureCause.of(new SocketTimeoutException("Connect timed out"), false, false))
+        .isEqualTo(FailureCause.CONNECT_TIMEOUT);
+    assertThat(FailureCause.of(new SocketTimeoutException("timeout"), false, true))
+        .isEqualTo(FailureCause.CONNECT_TIMEOUT);
+    assertThat(FailureCause.of(new SocketTimeoutException("timeout"), false, false))
+        .isEqualTo(FailureCause.READ_TIMEOUT);
+    // OkHttp cancels calls whose call timeout elapsed.
+    assertThat(FailureCause.of(new InterruptedIOException("timeout"), true, false))
+        .isEqualTo(FailureCause.CALL_TIMEOUT);
+  }
+
+  @Test
+  public void failuresAreClassifiedByType() {
+    assertThat(FailureCause.of(new ConcurrencyLimitExceededException("limit"), false, false))
+        .isEqualTo(FailureCause.REJECTED);
+    assertThat(FailureCause.of(new IOException("Canceled"), true, false))
+        .isEqualTo(FailureCause.CANCELED);
+    assertThat(FailureCause.of(new UnknownHostException("example.invalid"), false, false))
+        .isEqualTo(FailureCause.UNKNOWN_HOST);
+    assertThat(FailureCause.of(new SSLHandshakeException("bad certificate"), false, true))
+        .isEqualTo(FailureCause.TLS);
+    assertThat(FailureCause.of(new ConnectException("Connection refused"), false, true))
+        .isEqualTo(FailureCause.CONNECTION_REFUSED);
+    assertThat(FailureCause.of(new SocketException("Connection reset"), false, false))
+        .isEqualTo(FailureCause.CONNECTION_RESET);
+    assertThat(FailureCause.of(new IOException("stream was reset: CANCEL"), false, false))
+        .isEqualTo(FailureCause.CONNECTION_RESET);
+    assertThat(FailureCause.of(new IOException("unexpected end of stream"), false, false))
+        .isEqualTo(FailureCause.OTHER);
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import java.lang.management.ManagementFactory;
+import okhttp3.HttpUrl;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class HostMetricsTest {
+  private MetricRegistry registry;
+
+  @Before
+  public void setUp() {
+    registry = new MetricRegistry();
+  }
+
+  @Test
+  public void entriesAreSharedByHost() {
+    HostMetrics hosts =
+        new HostMetrics(MetricRegistrar.withDefaults(registry), "client", 10, false);
+
+    HostMetrics.Entry entry = hosts.get(HttpUrl.get("https://example.com/a"), 1);
+
+    assertThat(hosts.get(HttpUrl.get("http://example.com:8080/b"), 2)).isSameAs(entry);
+    assertThat(hosts.get(HttpUrl.get("https://example.org/"), 3)).isNotSameAs(entry);
+    assertThat(registry.getTimers()).containsKey("client.hosts.example.com.calls-duration");
+  }
+
+  @Test
+  public void entriesAreSeparatedByRoute() {
+    HostMetrics hosts = new HostMetrics(MetricRegistrar.withDefaults(registry), "client", 10, true);
+
+    HostMetrics.Entry entry = hosts.get(HttpUrl.get("https://example.com/a"), 1);
+
+    assertThat(hosts.get(HttpUrl.get("https://example.com:443/b"), 2)).isSameAs(entry);
+    assertThat(hosts.get(HttpUrl.get("https://example.com:8443/"), 3)).isNotSameAs(entry);
+    assertThat(hosts.get(HttpUrl.get("http://example.com/"), 4)).isNotSameAs(entry);
+    assertThat(registry.getTimers())
+        .containsKeys(
+            "client.routes.https.example.com.443.calls-duration",
+            "client.routes.https.example.com.8443.calls-duration",
+            "client.routes.http.example.com.80.calls-duration");
+  }
+
+  @Test
+  public void leastRecentlyUsedEntryIsEvicted() {
+    HostMetrics hosts = new HostMetrics(MetricRegistrar.withDefaults(registry), "client", 2, false);
+    HostMetrics.Entry a = hosts.get(HttpUrl.get("https://a.com/"), 1);
+    hosts.get(HttpUrl.get("https://example.com/"), 2);
+    hosts.get(HttpUrl.get("https://example.com.au/"), 3);
+
+    // a.com was used least recently, so it's the one evicted.
+    assertThat(registry.getNames()).noneMatch(name -> name.startsWith("client.hosts.a.com."));
+    assertThat(registry.getTimers())
+        .containsKeys(
+            "client.hosts.example.com.calls-duration",
+            "client.hosts.example.com.au.calls-duration");
+    assertThat(hosts.get(HttpUrl.get("https://a.com/"), 4)).isNotSameAs(a);
+
+    // Using example.com.au keeps it, so example.com is evicted to make room for a.com.
+    assertThat(registry.getTimers()).doesNotContainKey("client.hosts.example.com.calls-duration");
+    assertThat(registry.getTimers()).containsKey("client.hosts.example.com.au.calls-duration");
+    assertThat(registry.getMeters()).containsKey("client.hosts.example.com.au.calls-failed");
+  }
+
+  @Test
+  public void lookingUpAnExistingEntryDoesNotAllocate() {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+
+    HostMetrics hosts = new HostMetrics(MetricRegistrar.withDefaults(registry), "client", 10, true);
+    HttpUrl url = HttpUrl.get("https://example.com/");
+
+    // Warm up so class loading and JIT compilation don't skew the measurement.
+    for (int i = 0; i < 10_000; i++) {
+      hosts.get(url, i);
+    }
+
+    long threadId = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < 10_000; i++) {
+      hosts.get(url, i);
+    }
+
+    assertThat(threads.getThreadAllocatedBytes(threadId) - before).isLessThan(1024);
+  }
+}
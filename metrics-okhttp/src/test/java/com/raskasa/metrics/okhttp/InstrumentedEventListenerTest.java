@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class InstrumentedEventListenerTest {
+  private static final IOException FAILURE = new IOException("failure");
+
+  private MetricRegistry registry;
+  private Call call;
+
+  @Before
+  public void setUp() {
+    registry = new MetricRegistry();
+    call = new OkHttpClient().newCall(new Request.Builder().url("http://localhost/").build());
+  }
+
+  @Test
+  public void listenerCreationAllocatesOnlyTheListener() {
+    com.sun.management.ThreadMXBean threads = allocationCountingThreads();
+
+    EventListener.Factory factory =
+        new InstrumentedEventListener.Factory(registry, ignored -> EventListener.NONE, "client");
+
+    // Warm up so class loading and JIT compilation don't skew the measurement.
+    for (int i = 0; i < 10_000; i++) {
+      factory.create(call);
+    }
+
+    int iterations = 10_000;
+    long threadId = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < iterations; i++) {
+      factory.create(call);
+    }
+    long bytesPerCall = (threads.getThreadAllocatedBytes(threadId) - before) / iterations;
+
+    assertThat(bytesPerCall).isLessThan(128);
+  }
+
+  @Test
+  public void timingACallAllocatesNothing() throws Exception {
+    com.sun.management.ThreadMXBean threads = allocationCountingThreads();
+
+    // Metrics' default reservoir allocates for every value, so use one that doesn't. Counting in
+    // latency buckets doesn't allocate either.
+    MetricRegistrar registrar =
+        new MetricRegistrar(
+            registry,
+            () -> new Timer(new StripedHistogramReservoir()),
+            () -> new Histogram(new StripedHistogramReservoir()),
+            new LatencyBuckets(TimeUnit.MILLISECONDS, new long[] {1, 10, 100, 1000}));
+    EventListener.Factory factory =
+        new InstrumentedEventListener.Factory(
+            null,
+            new EventListenerMetrics(registrar, "client", null),
+            null,
+            null,
+            ignored -> EventListener.NONE,
+            new InstrumentationLevels(),
+            1.0);
+    EventListener listener = factory.create(call);
+    List<InetAddress> addresses = Collections.singletonList(InetAddress.getLoopbackAddress());
+    InetSocketAddress address = new InetSocketAddress(addresses.get(0), 80);
+
+    int iterations = 10_000;
+    long before = 0;
+    long threadId = Thread.currentThread().getId();
+    // The first round warms up, so class loading and JIT compilation don't skew the second.
+    for (int round = 0; round < 2; round++) {
+      before = threads.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < iterations; i++) {
+        listener.callStart(call);
+        listener.dnsStart(call, "localhost");
+        listener.dnsEnd(call, "localhost", addresses);
+        listener.connectStart(call, address, Proxy.NO_PROXY);
+        listener.connectFailed(call, address, Proxy.NO_PROXY, null, FAILURE);
+        listener.connectStart(call, address, Proxy.NO_PROXY);
+        listener.connectEnd(call, address, Proxy.NO_PROXY, Protocol.HTTP_1_1);
+        listener.requestHeadersStart(call);
+        listener.requestBodyStart(call);
+        listener.requestBodyEnd(call, 1024L);
+        listener.responseBodyStart(call);
+        listener.responseBodyEnd(call, 1024L);
+        listener.callEnd(call);
+      }
+    }
+    long bytesPerCall = (threads.getThreadAllocatedBytes(threadId) - before) / iterations;
+
+    assertThat(bytesPerCall).isEqualTo(0);
+  }
+
+  private static com.sun.management.ThreadMXBean allocationCountingThreads() {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+    return threads;
+  }
+}
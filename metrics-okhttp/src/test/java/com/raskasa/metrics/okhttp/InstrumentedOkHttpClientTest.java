@@ -18,29 +18,57 @@ package com.raskasa.metrics.okhttp;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.fail;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
 import okhttp3.Cache;
 import okhttp3.Call;
 import okhttp3.Callback;
+import okhttp3.ConnectionPool;
 import okhttp3.Dispatcher;
 import okhttp3.EventListener;
+import okhttp3.Handshake;
 import okhttp3.HttpUrl;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.RecordingEventListener;
 import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+import okio.ByteString;
 import org.assertj.core.api.Assertions;
 import org.junit.Before;
 import org.junit.Rule;
@@ -173,20 +201,74 @@ public final class InstrumentedOkHttpClientTest {
 
     Cache cache = new Cache(cacheRule.getRoot(), Long.MAX_VALUE);
     rawClient = rawClient.newBuilder().cache(cache).build();
-    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .cacheSizeRefreshInterval(10, TimeUnit.MILLISECONDS)
+            .build();
+    String maxSize = MetricRegistry.name(OkHttpClient.class, "cache-max-size");
+    String currentSize = MetricRegistry.name(OkHttpClient.class, "cache-current-size");
 
-    assertThat(registry.getGauges().get(client.metricId("cache-max-size")).getValue())
-        .isEqualTo(Long.MAX_VALUE);
-    assertThat(registry.getGauges().get(client.metricId("cache-current-size")).getValue())
-        .isEqualTo(0L);
+    awaitGauge(maxSize, Long.MAX_VALUE);
+    awaitGauge(currentSize, 0L);
 
     Request request = new Request.Builder().url(baseUrl).build();
     Response response = client.newCall(request).execute();
+    response.body().string();
+
+    // The sizes are read in the background, so the gauges catch up shortly after the write.
+    awaitGauge(currentSize, cache.size());
+    assertThat(cache.size()).isGreaterThan(0L);
+    assertThat(
+            (Long)
+                registry
+                    .getGauges()
+                    .get(MetricRegistry.name(OkHttpClient.class, "cache-size-age"))
+                    .getValue())
+        .isBetween(0L, 10_000L);
+
+    InstrumentedOkHttpClients.unregister(client);
+  }
+
+  private void awaitGauge(String name, Object expected) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!expected.equals(registry.getGauges().get(name).getValue())
+        && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+    assertThat(registry.getGauges().get(name).getValue()).isEqualTo(expected);
+  }
+
+  @Test
+  public void cacheOutcomesAreInstrumented() throws Exception {
+    server.enqueue(
+        new MockResponse().addHeader("Cache-Control: public, max-age=31536000").setBody("fresh"));
+    server.enqueue(
+        new MockResponse()
+            .addHeader("Cache-Control: no-cache")
+            .addHeader("ETag: \"v1\"")
+            .setBody("validated"));
+    server.enqueue(new MockResponse().setResponseCode(304));
+    HttpUrl fresh = server.url("/fresh");
+    HttpUrl validated = server.url("/validated");
 
-    assertThat(registry.getGauges().get(client.metricId("cache-current-size")).getValue())
-        .isEqualTo(rawClient.cache().size());
+    rawClient = rawClient.newBuilder().cache(new Cache(cacheRule.getRoot(), 1024 * 1024)).build();
+    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+
+    for (HttpUrl url : Arrays.asList(fresh, fresh, validated, validated)) {
+      client.newCall(new Request.Builder().url(url).build()).execute().body().string();
+    }
 
-    response.body().close();
+    assertThat(server.getRequestCount()).isEqualTo(3);
+    assertThat(registry.getTimers().get(client.metricId("cache-hit-duration")).getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry.getTimers().get(client.metricId("cache-conditional-hit-duration")).getCount())
+        .isEqualTo(1);
+    assertThat(registry.getTimers().get(client.metricId("cache-miss-duration")).getCount())
+        .isEqualTo(2);
+    assertThat(registry.getMeters().get(client.metricId("cache-bytes-served")).getCount())
+        .isEqualTo("fresh".length() + "validated".length());
   }
 
   @Test
@@ -224,32 +306,28 @@ public final class InstrumentedOkHttpClientTest {
 
     InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
 
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "calls-start"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "calls-end"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "calls-failed"));
-    assertThat(registry.getTimers().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "calls-duration"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "dns-start"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "dns-end"));
-    assertThat(registry.getTimers().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "dns-duration"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "connections-start"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "connections-end"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "connections-failed"));
-    assertThat(registry.getTimers().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "connections-duration"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "connections-acquired"));
-    assertThat(registry.getMeters().keySet())
-        .doesNotContain(MetricRegistry.name(EventListener.class, "connections-released"));
+    // The metrics are registered once, up front, rather than by the first call's listener.
+    for (String meter :
+        Arrays.asList(
+            "calls-start",
+            "calls-end",
+            "calls-failed",
+            "dns-start",
+            "dns-end",
+            "connections-start",
+            "connections-end",
+            "connections-failed",
+            "connections-acquired",
+            "connections-released")) {
+      assertThat(
+              registry.getMeters().get(MetricRegistry.name(EventListener.class, meter)).getCount())
+          .isEqualTo(0);
+    }
+    for (String timer : Arrays.asList("calls-duration", "dns-duration", "connections-duration")) {
+      assertThat(
+              registry.getTimers().get(MetricRegistry.name(EventListener.class, timer)).getCount())
+          .isEqualTo(0);
+    }
 
     Request req1 = new Request.Builder().url(baseUrl).build();
     Request req2 = new Request.Builder().url(baseUrl).build();
@@ -434,6 +512,1207 @@ public final class InstrumentedOkHttpClientTest {
         .isEqualTo(2);
   }
 
+  @Test
+  public void dispatcherIsInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setBody("one").setHeadersDelay(500, TimeUnit.MILLISECONDS));
+    server.enqueue(new MockResponse().setBody("two"));
+    server.enqueue(new MockResponse().setBody("three"));
+    HttpUrl baseUrl = server.url("/");
+
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequestsPerHost(1);
+    rawClient = rawClient.newBuilder().dispatcher(dispatcher).build();
+    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+    String host = baseUrl.host();
+
+    assertThat(registry.getGauges().get(client.metricId("dispatcher-running-calls")).getValue())
+        .isEqualTo(0);
+    assertThat(registry.getGauges().get(client.metricId("dispatcher-queued-calls")).getValue())
+        .isEqualTo(0);
+    assertThat(
+            registry
+                .getGauges()
+                .get(client.metricId("dispatcher-max-requests-per-host"))
+                .getValue())
+        .isEqualTo(1);
+
+    CountDownLatch latch = new CountDownLatch(2);
+    Callback callback =
+        new Callback() {
+          @Override
+          public void onFailure(Call call, IOException e) {
+            latch.countDown();
+          }
+
+          @Override
+          public void onResponse(Call call, Response response) {
+            response.close();
+            latch.countDown();
+          }
+        };
+    client.newCall(new Request.Builder().url(baseUrl).build()).enqueue(callback);
+    client.newCall(new Request.Builder().url(baseUrl).build()).enqueue(callback);
+
+    // The second call waits for the first, slow call to the same host.
+    assertThat(registry.getGauges().get(client.metricId("dispatcher-running-calls")).getValue())
+        .isEqualTo(1);
+    assertThat(registry.getGauges().get(client.metricId("dispatcher-queued-calls")).getValue())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getGauges()
+                .get(client.metricId("dispatcher-hosts." + host + ".running-calls"))
+                .getValue())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getGauges()
+                .get(client.metricId("dispatcher-hosts." + host + ".queued-calls"))
+                .getValue())
+        .isEqualTo(1);
+
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    Timer queueDuration = registry.getTimers().get(client.metricId("dispatcher-queue-duration"));
+    assertThat(queueDuration.getCount()).isEqualTo(2);
+    assertThat(queueDuration.getSnapshot().getMax())
+        .isGreaterThan(TimeUnit.MILLISECONDS.toNanos(400));
+
+    // Synchronous calls are never queued.
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().close();
+    assertThat(queueDuration.getCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void synchronousCallsFromCallbacksAreNotTimedInTheQueue() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    HttpUrl baseUrl = server.url("/");
+
+    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+    CountDownLatch latch = new CountDownLatch(1);
+    client
+        .newCall(new Request.Builder().url(baseUrl).build())
+        .enqueue(
+            new Callback() {
+              @Override
+              public void onFailure(Call call, IOException e) {
+                latch.countDown();
+              }
+
+              @Override
+              public void onResponse(Call call, Response response) throws IOException {
+                response.close();
+                client.newCall(new Request.Builder().url(baseUrl).build()).execute().close();
+                latch.countDown();
+              }
+            });
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(server.getRequestCount()).isEqualTo(2);
+    assertThat(registry.timer(client.metricId("dispatcher-queue-duration")).getCount())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void callsEnqueuedFromCallbacksAreTimedInTheQueue() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    HttpUrl baseUrl = server.url("/");
+
+    // With one thread, the call enqueued from the first call's callback runs on the same thread.
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Dispatcher dispatcher = new Dispatcher(executor);
+    dispatcher.setMaxRequests(1);
+    rawClient = rawClient.newBuilder().dispatcher(dispatcher).build();
+    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+
+    CountDownLatch latch = new CountDownLatch(2);
+    Callback callback =
+        new Callback() {
+          @Override
+          public void onFailure(Call call, IOException e) {
+            latch.countDown();
+          }
+
+          @Override
+          public void onResponse(Call call, Response response) {
+            response.close();
+            if (latch.getCount() == 2) {
+              client.newCall(new Request.Builder().url(baseUrl).build()).enqueue(this);
+            }
+            latch.countDown();
+          }
+        };
+    client.newCall(new Request.Builder().url(baseUrl).build()).enqueue(callback);
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    executor.shutdown();
+
+    assertThat(server.getRequestCount()).isEqualTo(2);
+    assertThat(registry.timer(client.metricId("dispatcher-queue-duration")).getCount())
+        .isEqualTo(2);
+  }
+
+  @Test
+  public void timersAreCreatedBySupplier() {
+    List<Timer> created = new ArrayList<>();
+    InstrumentedOkHttpClients.builder(registry)
+        .client(rawClient)
+        .timerSupplier(
+            () -> {
+              Timer timer = new Timer(new StripedHistogramReservoir());
+              created.add(timer);
+              return timer;
+            })
+        .build();
+
+    assertThat(created).isNotEmpty();
+    assertThat(created).containsExactlyInAnyOrderElementsOf(registry.getTimers().values());
+  }
+
+  @Test
+  public void unsampledCallsAreCountedButNotTimed() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    server.enqueue(new MockResponse().setBody("three"));
+    HttpUrl baseUrl = server.url("/");
+
+    // The smallest rate that's valid, which in practice samples nothing.
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .sampleRate(Double.MIN_VALUE)
+            .build();
+    for (int i = 0; i < 3; i++) {
+      client.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+    }
+
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "calls-end"))
+                .getCount())
+        .isEqualTo(3);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "calls-reused-connection"))
+                .getCount())
+        .isEqualTo(2);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "bytes-received"))
+                .getCount())
+        .isGreaterThan(11);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "calls-duration"))
+                .getCount())
+        .isEqualTo(0);
+    assertThat(
+            registry
+                .getHistograms()
+                .get(MetricRegistry.name(EventListener.class, "response-body-size"))
+                .getCount())
+        .isEqualTo(0);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(OkHttpClient.class, "dispatcher-queue-duration"))
+                .getCount())
+        .isEqualTo(0);
+  }
+
+  @Test
+  public void sampleRateMustBeAFraction() {
+    InstrumentedOkHttpClients.Builder builder = InstrumentedOkHttpClients.builder(registry);
+    for (double sampleRate : new double[] {0.0, -0.5, 1.5, Double.NaN}) {
+      try {
+        builder.sampleRate(sampleRate);
+        fail();
+      } catch (IllegalArgumentException expected) {
+        assertThat(expected).hasMessageContaining("sampleRate");
+      }
+    }
+  }
+
+  @Test
+  public void levelsCanBeChangedWhileTheClientIsInUse() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    server.enqueue(new MockResponse().setBody("three"));
+    HttpUrl baseUrl = server.url("/");
+
+    InstrumentationLevels levels = new InstrumentationLevels(InstrumentationLevel.BASIC);
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry).client(rawClient).levels(levels).build();
+    Meter callsEnd =
+        registry.getMeters().get(MetricRegistry.name(EventListener.class, "calls-end"));
+    Timer callsDuration =
+        registry.getTimers().get(MetricRegistry.name(EventListener.class, "calls-duration"));
+    Histogram responseBodySize =
+        registry
+            .getHistograms()
+            .get(MetricRegistry.name(EventListener.class, "response-body-size"));
+    Timer networkRequestsDuration =
+        registry
+            .getTimers()
+            .get(MetricRegistry.name(OkHttpClient.class, "network-requests-duration"));
+
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+    assertThat(callsEnd.getCount()).isEqualTo(1);
+    assertThat(callsDuration.getCount()).isEqualTo(0);
+    assertThat(networkRequestsDuration.getCount()).isEqualTo(0);
+
+    levels.setAll(InstrumentationLevel.FULL);
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+    assertThat(callsEnd.getCount()).isEqualTo(2);
+    assertThat(callsDuration.getCount()).isEqualTo(1);
+    assertThat(responseBodySize.getCount()).isEqualTo(1);
+    assertThat(networkRequestsDuration.getCount()).isEqualTo(1);
+
+    levels.set(MetricFamily.EVENTS, InstrumentationLevel.OFF);
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+    assertThat(callsEnd.getCount()).isEqualTo(2);
+    assertThat(networkRequestsDuration.getCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void familiesThatAreOffAreNotRegistered() {
+    InstrumentedOkHttpClients.builder(registry)
+        .client(rawClient)
+        .level(MetricFamily.CONNECTION_POOL, InstrumentationLevel.OFF)
+        .level(MetricFamily.DISPATCHER, InstrumentationLevel.OFF)
+        .build();
+
+    assertThat(registry.getNames())
+        .noneMatch(name -> name.contains("connection-pool"))
+        .noneMatch(name -> name.contains("dispatcher"))
+        .contains(MetricRegistry.name(EventListener.class, "calls-end"));
+  }
+
+  @Test
+  public void familiesThatWereOffCanBeTurnedOn() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    InstrumentationLevels levels = new InstrumentationLevels(InstrumentationLevel.OFF);
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient.newBuilder().cache(new Cache(cacheRule.getRoot(), 1024)).build())
+            .levels(levels)
+            .build();
+    assertThat(registry.getNames())
+        .noneMatch(name -> name.contains("responses-"))
+        .noneMatch(name -> name.contains("cache-"))
+        .noneMatch(name -> name.contains("dispatcher-"));
+
+    levels.setAll(InstrumentationLevel.FULL);
+    CountDownLatch done = new CountDownLatch(1);
+    client
+        .newCall(new Request.Builder().url(baseUrl).build())
+        .enqueue(
+            new Callback() {
+              @Override
+              public void onFailure(Call call, IOException e) {
+                done.countDown();
+              }
+
+              @Override
+              public void onResponse(Call call, Response response) {
+                response.close();
+                done.countDown();
+              }
+            });
+    assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(registry.meter(MetricRegistry.name(OkHttpClient.class, "responses-2xx")).getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .timer(MetricRegistry.name(OkHttpClient.class, "cache-miss-duration"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .timer(MetricRegistry.name(OkHttpClient.class, "dispatcher-queue-duration"))
+                .getCount())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void unregisterRemovesEveryMetric() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    HttpUrl baseUrl = server.url("/");
+
+    rawClient = rawClient.newBuilder().cache(new Cache(cacheRule.getRoot(), 1024)).build();
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .name("tenant")
+            .perHostMetrics(10)
+            .build();
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+    assertThat(registry.getNames()).contains(hostMetric("tenant", baseUrl));
+
+    InstrumentedOkHttpClients.unregister(client);
+    assertThat(registry.getNames()).isEmpty();
+
+    // Metrics that are first needed once the client is unregistered aren't registered either.
+    client
+        .newCall(new Request.Builder().url(baseUrl.newBuilder().host("127.0.0.1").build()).build())
+        .execute()
+        .body()
+        .string();
+    assertThat(registry.getNames()).isEmpty();
+  }
+
+  @Test
+  public void clientsCanShareAName() {
+    OkHttpClient first = InstrumentedOkHttpClients.create(registry, rawClient, "shared");
+    OkHttpClient second =
+        InstrumentedOkHttpClients.create(
+            registry,
+            rawClient.newBuilder().connectionPool(new ConnectionPool()).build(),
+            "shared");
+    String poolGauge =
+        MetricRegistry.name(OkHttpClient.class, "shared", "connection-pool-total-count");
+    String callsEnd = MetricRegistry.name(EventListener.class, "shared", "calls-end");
+
+    // The second client's gauges replace the first's, while the other metrics are shared.
+    InstrumentedOkHttpClients.unregister(first);
+    assertThat(registry.getNames()).contains(poolGauge, callsEnd);
+
+    InstrumentedOkHttpClients.unregister(second);
+    assertThat(registry.getNames()).isEmpty();
+
+    InstrumentedOkHttpClients.create(registry, rawClient, "shared");
+    assertThat(registry.getNames()).contains(poolGauge, callsEnd);
+  }
+
+  @Test
+  public void derivedClientsShareInstrumentation() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient parent = InstrumentedOkHttpClients.create(registry, rawClient, "parent");
+    Set<String> names = new HashSet<>(registry.getNames());
+    OkHttpClient derived = parent.newBuilder().readTimeout(5, TimeUnit.SECONDS).build();
+    OkHttpClient wrapped = InstrumentedOkHttpClients.create(registry, derived, "parent");
+
+    assertThat(wrapped).isSameAs(derived);
+    assertThat(wrapped.readTimeoutMillis()).isEqualTo(5_000);
+    assertThat(wrapped.interceptors()).isEqualTo(parent.interceptors());
+    assertThat(wrapped.networkInterceptors()).isEqualTo(parent.networkInterceptors());
+    assertThat(wrapped.eventListenerFactory())
+        .isSameAs(parent.newBuilder().build().eventListenerFactory());
+    assertThat(registry.getNames()).isEqualTo(names);
+
+    derived.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+    wrapped.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "parent", "calls-end"))
+                .getCount())
+        .isEqualTo(2);
+    assertThat(
+            registry
+                .getMeters()
+                .get(
+                    MetricRegistry.name(OkHttpClient.class, "parent", "network-requests-completed"))
+                .getCount())
+        .isEqualTo(2);
+
+    InstrumentedOkHttpClients.unregister(derived);
+    assertThat(registry.getNames()).isEmpty();
+  }
+
+  @Test
+  public void derivedClientsInstrumentedDifferentlyAreNotCountedTwice() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient parent = InstrumentedOkHttpClients.create(registry, rawClient, "parent");
+    OkHttpClient child =
+        InstrumentedOkHttpClients.create(registry, parent.newBuilder().build(), "child");
+
+    assertThat(child.interceptors()).hasSameSizeAs(parent.interceptors());
+    assertThat(child.networkInterceptors()).hasSameSizeAs(parent.networkInterceptors());
+
+    child.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "child", "calls-end"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "parent", "calls-end"))
+                .getCount())
+        .isEqualTo(0);
+  }
+
+  @Test
+  public void derivedClientsWithAnotherListenerAreNotCountedTwice() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient parent =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .name("parent")
+            .dnsCache(10, 1, 0, TimeUnit.MINUTES)
+            .build();
+    RecordingEventListener listener = new RecordingEventListener();
+    OkHttpClient child =
+        InstrumentedOkHttpClients.create(
+            registry, parent.newBuilder().eventListener(listener).build(), "child");
+
+    assertThat(child.interceptors()).hasSameSizeAs(parent.interceptors());
+    assertThat(child.networkInterceptors()).hasSameSizeAs(parent.networkInterceptors());
+    assertThat(child.dns()).isNotInstanceOf(CachingDns.class);
+
+    child.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+
+    assertThat(
+            registry
+                .meter(
+                    MetricRegistry.name(OkHttpClient.class, "child", "network-requests-completed"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .meter(
+                    MetricRegistry.name(OkHttpClient.class, "parent", "network-requests-completed"))
+                .getCount())
+        .isEqualTo(0);
+    assertThat(
+            registry
+                .meter(MetricRegistry.name(OkHttpClient.class, "child", "responses-2xx"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(listener.recordedEventTypes()).contains("CallStart", "CallEnd");
+  }
+
+  private static String hostMetric(String name, HttpUrl url) {
+    return MetricRegistry.name(EventListener.class, name, "hosts", url.host(), "calls-duration");
+  }
+
+  @Test
+  public void payloadSizesAreInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setBody("response"));
+    HttpUrl baseUrl = server.url("/");
+
+    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+    Request request =
+        new Request.Builder()
+            .url(baseUrl)
+            .post(RequestBody.create(MediaType.get("text/plain"), "hello"))
+            .build();
+    Response response = client.newCall(request).execute();
+    response.body().string();
+
+    Histogram requestHeadersSize =
+        registry
+            .getHistograms()
+            .get(MetricRegistry.name(EventListener.class, "request-headers-size"));
+    Histogram responseHeadersSize =
+        registry
+            .getHistograms()
+            .get(MetricRegistry.name(EventListener.class, "response-headers-size"));
+    assertThat(requestHeadersSize.getCount()).isEqualTo(1);
+    assertThat(responseHeadersSize.getCount()).isEqualTo(1);
+    assertThat(responseHeadersSize.getSnapshot().getMax())
+        .isEqualTo(response.headers().byteCount());
+    assertThat(
+            registry
+                .getHistograms()
+                .get(MetricRegistry.name(EventListener.class, "request-body-size"))
+                .getSnapshot()
+                .getValues())
+        .containsExactly(5);
+    assertThat(
+            registry
+                .getHistograms()
+                .get(MetricRegistry.name(EventListener.class, "response-body-size"))
+                .getSnapshot()
+                .getValues())
+        .containsExactly(8);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "bytes-sent"))
+                .getCount())
+        .isEqualTo(requestHeadersSize.getSnapshot().getMax() + 5);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "bytes-received"))
+                .getCount())
+        .isEqualTo(response.headers().byteCount() + 8);
+  }
+
+  @Test
+  public void phasesAreInstrumented() throws Exception {
+    server.enqueue(
+        new MockResponse().setBody("response").setHeadersDelay(200, TimeUnit.MILLISECONDS));
+    HttpUrl baseUrl = server.url("/");
+
+    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+    Request request =
+        new Request.Builder()
+            .url(baseUrl)
+            .post(RequestBody.create(MediaType.get("text/plain"), "hello"))
+            .build();
+    client.newCall(request).execute().body().string();
+
+    for (String phase :
+        new String[] {
+          "request-headers-duration",
+          "request-body-duration",
+          "server-wait-duration",
+          "response-body-duration"
+        }) {
+      assertThat(
+              registry.getTimers().get(MetricRegistry.name(EventListener.class, phase)).getCount())
+          .as(phase)
+          .isEqualTo(1);
+    }
+    Timer serverWait =
+        registry.getTimers().get(MetricRegistry.name(EventListener.class, "server-wait-duration"));
+    assertThat(serverWait.getSnapshot().getMax()).isGreaterThanOrEqualTo(200_000_000L);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "response-body-duration"))
+                .getSnapshot()
+                .getMax())
+        .isLessThan(200_000_000L);
+  }
+
+  @Test
+  public void connectionReuseIsInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    server.enqueue(new MockResponse().setBody("three"));
+    HttpUrl baseUrl = server.url("/");
+
+    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+    for (int i = 0; i < 3; i++) {
+      client.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+    }
+
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "calls-new-connection"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "calls-new-connection-duration"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "calls-reused-connection"))
+                .getCount())
+        .isEqualTo(2);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "calls-reused-connection-duration"))
+                .getCount())
+        .isEqualTo(2);
+  }
+
+  @Test
+  public void connectionPoolUsageIsInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    HttpUrl baseUrl = server.url("/");
+
+    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+    Counter inUse = registry.getCounters().get(client.metricId("connection-pool-in-use-count"));
+
+    Response first = client.newCall(new Request.Builder().url(baseUrl).build()).execute();
+    assertThat(inUse.getCount()).isEqualTo(1);
+    first.body().string();
+    assertThat(inUse.getCount()).isEqualTo(0);
+
+    Thread.sleep(10);
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+    assertThat(inUse.getCount()).isEqualTo(0);
+
+    assertThat(
+            registry.getTimers().get(client.metricId("connection-pool-wait-duration")).getCount())
+        .isEqualTo(2);
+    Timer ageAtReuse = registry.getTimers().get(client.metricId("connection-pool-age-at-reuse"));
+    assertThat(ageAtReuse.getCount()).isEqualTo(1);
+    assertThat(ageAtReuse.getSnapshot().getMax()).isGreaterThanOrEqualTo(10_000_000L);
+  }
+
+  @Test
+  public void http2MultiplexingIsInstrumented() throws Exception {
+    server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    server.enqueue(new MockResponse().setBody("three"));
+    HttpUrl baseUrl = server.url("/");
+
+    rawClient =
+        rawClient
+            .newBuilder()
+            .protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE))
+            .build();
+    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+    Gauge<?> streams =
+        registry
+            .getGauges()
+            .get(client.metricId("connection-pool-streams-per-multiplexed-connection"));
+
+    // Both calls hold the one connection until their responses are read.
+    Response first = client.newCall(new Request.Builder().url(baseUrl).build()).execute();
+    Response second = client.newCall(new Request.Builder().url(baseUrl).build()).execute();
+    assertThat(streams.getValue()).isEqualTo(2.0);
+    first.body().string();
+    second.body().string();
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+
+    String h2 = "h2_prior_knowledge";
+    Map<String, Meter> meters = registry.getMeters();
+    assertThat(meters.get(MetricRegistry.name(EventListener.class, "connections-protocols", h2)))
+        .extracting(Meter::getCount)
+        .isEqualTo(1L);
+    assertThat(meters.get(MetricRegistry.name(EventListener.class, "calls-protocols", h2)))
+        .extracting(Meter::getCount)
+        .isEqualTo(3L);
+
+    // A connection's calls are counted once it has closed and the gauge notices.
+    client.connectionPool().evictAll();
+    assertThat(streams.getValue()).isEqualTo(Double.NaN);
+    Histogram callsPerConnection =
+        registry.getHistograms().get(client.metricId("connection-pool-calls-per-connection"));
+    assertThat(callsPerConnection.getCount()).isEqualTo(1);
+    assertThat(callsPerConnection.getSnapshot().getMax()).isEqualTo(3);
+  }
+
+  @Test
+  public void everyConnectAttemptIsTimed() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    // Nothing listens on 127.0.0.2, so the first route is refused and the second one is taken.
+    InetAddress unreachable = InetAddress.getByName("127.0.0.2");
+    InetAddress reachable = InetAddress.getByName(baseUrl.host());
+    rawClient = rawClient.newBuilder().dns(host -> Arrays.asList(unreachable, reachable)).build();
+    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "connections-failed"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "connections-end"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "connections-duration"))
+                .getCount())
+        .isEqualTo(2);
+    assertThat(
+            registry
+                .getHistograms()
+                .get(MetricRegistry.name(EventListener.class, "connections-attempts-per-call"))
+                .getSnapshot()
+                .getValues())
+        .containsExactly(2);
+  }
+
+  @Test
+  public void tlsHandshakesAreInstrumented() throws Exception {
+    HeldCertificate certificate =
+        new HeldCertificate.Builder().addSubjectAlternativeName("localhost").build();
+    HandshakeCertificates serverCertificates =
+        new HandshakeCertificates.Builder().heldCertificate(certificate).build();
+    HandshakeCertificates clientCertificates =
+        new HandshakeCertificates.Builder()
+            .addTrustedCertificate(certificate.certificate())
+            .build();
+    server.useHttps(serverCertificates.sslSocketFactory(), false);
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    HttpUrl baseUrl = server.url("/");
+
+    // Connections made with the same context share its session cache, so the second one resumes the
+    // first one's session.
+    SSLContext sslContext = clientCertificates.sslContext();
+    sslContext.getClientSessionContext().setSessionCacheSize(16);
+    rawClient =
+        rawClient
+            .newBuilder()
+            .sslSocketFactory(sslContext.getSocketFactory(), clientCertificates.trustManager())
+            .build();
+    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+
+    Response response = client.newCall(new Request.Builder().url(baseUrl).build()).execute();
+    response.close();
+    Handshake handshake = response.handshake();
+
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "tls-handshakes-duration"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "tls-handshakes-full"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(
+                    MetricRegistry.name(
+                        EventListener.class, "tls-versions", handshake.tlsVersion().javaName()))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(
+                    MetricRegistry.name(
+                        EventListener.class,
+                        "tls-cipher-suites",
+                        handshake.cipherSuite().javaName()))
+                .getCount())
+        .isEqualTo(1);
+
+    client.connectionPool().evictAll();
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().close();
+
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(EventListener.class, "tls-handshakes-duration"))
+                .getCount())
+        .isEqualTo(2);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "tls-handshakes-full"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "tls-handshakes-resumed"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "tls-handshakes-failed"))
+                .getCount())
+        .isEqualTo(0);
+  }
+
+  @Test
+  public void hostsAreInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry).client(rawClient).perHostMetrics(10).build();
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().close();
+
+    String prefix = MetricRegistry.name(EventListener.class, "hosts", baseUrl.host());
+    assertThat(registry.getTimers().get(MetricRegistry.name(prefix, "calls-duration")).getCount())
+        .isEqualTo(1);
+    assertThat(registry.getTimers().get(MetricRegistry.name(prefix, "dns-duration")).getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getTimers()
+                .get(MetricRegistry.name(prefix, "connections-duration"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(registry.getMeters().get(MetricRegistry.name(prefix, "calls-failed")).getCount())
+        .isEqualTo(0);
+  }
+
+  @Test
+  public void responseStatusClassesAreInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(200));
+    server.enqueue(new MockResponse().setResponseCode(302).addHeader("Location: /redirected"));
+    server.enqueue(new MockResponse().setResponseCode(404));
+    server.enqueue(new MockResponse().setResponseCode(503));
+    HttpUrl baseUrl = server.url("/");
+
+    // The application interceptor sees each call's final response, and the failures of the
+    // interceptors added after it.
+    rawClient =
+        rawClient
+            .newBuilder()
+            .addInterceptor(
+                chain -> {
+                  if (chain.request().url().encodedPath().equals("/fail")) {
+                    throw new IOException("failed");
+                  }
+                  return chain.proceed(chain.request());
+                })
+            .build();
+    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+
+    for (int i = 0; i < 3; i++) {
+      client.newCall(new Request.Builder().url(baseUrl).build()).execute().close();
+    }
+    try {
+      client.newCall(new Request.Builder().url(server.url("/fail")).build()).execute();
+      fail();
+    } catch (IOException expected) {
+    }
+
+    assertThat(server.getRequestCount()).isEqualTo(4);
+    for (String statusClass : Arrays.asList("2xx", "4xx", "5xx")) {
+      assertThat(registry.getMeters().get(client.metricId("responses-" + statusClass)).getCount())
+          .as(statusClass)
+          .isEqualTo(1);
+      assertThat(
+              registry
+                  .getTimers()
+                  .get(client.metricId("responses-" + statusClass + "-duration"))
+                  .getCount())
+          .as(statusClass)
+          .isEqualTo(1);
+    }
+    assertThat(registry.getMeters().get(client.metricId("responses-3xx")).getCount()).isEqualTo(0);
+    assertThat(registry.getMeters().get(client.metricId("responses-failed")).getCount())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void latencyBucketsAreRegisteredNextToTimers() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .latencyBuckets(TimeUnit.MILLISECONDS, 1, 10, 100, 60_000)
+            .build();
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+
+    String callsDuration = MetricRegistry.name(EventListener.class, "calls-duration");
+    assertThat(registry.getCounters().get(callsDuration + ".buckets.le-60000ms").getCount())
+        .isEqualTo(1);
+    assertThat(registry.getCounters().get(callsDuration + ".buckets.le-inf").getCount())
+        .isEqualTo(1);
+
+    InstrumentedOkHttpClients.unregister(client);
+    assertThat(registry.getNames()).isEmpty();
+  }
+
+  @Test
+  public void dnsCacheCanBeInstalled() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    server.enqueue(new MockResponse().setBody("two"));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .dnsCache(10, 1, 0, TimeUnit.MINUTES)
+            .build();
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+    client.connectionPool().evictAll();
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+
+    String dnsCache = MetricRegistry.name(OkHttpClient.class, "dns-cache");
+    assertThat(registry.meter(dnsCache + "-misses").getCount()).isEqualTo(1);
+    assertThat(registry.meter(dnsCache + "-hits").getCount()).isEqualTo(1);
+    assertThat(registry.timer(MetricRegistry.name(EventListener.class, "dns-duration")).getCount())
+        .isEqualTo(2);
+  }
+
+  @Test
+  public void failuresAreClassified() throws Exception {
+    server.enqueue(new MockResponse().setHeadersDelay(1, TimeUnit.SECONDS));
+    HttpUrl baseUrl = server.url("/");
+
+    rawClient = rawClient.newBuilder().readTimeout(100, TimeUnit.MILLISECONDS).build();
+    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+
+    try {
+      client.newCall(new Request.Builder().url(baseUrl).build()).execute();
+      fail();
+    } catch (SocketTimeoutException expected) {
+    }
+    Call canceled = client.newCall(new Request.Builder().url(baseUrl).build());
+    canceled.cancel();
+    try {
+      canceled.execute();
+      fail();
+    } catch (IOException expected) {
+    }
+    server.shutdown();
+    try {
+      client.newCall(new Request.Builder().url(baseUrl).build()).execute();
+      fail();
+    } catch (ConnectException expected) {
+    }
+
+    Map<String, Meter> meters = registry.getMeters();
+    for (String cause : Arrays.asList("read-timeout", "canceled", "connection-refused")) {
+      assertThat(meters.get(MetricRegistry.name(EventListener.class, "calls-failed", cause)))
+          .as(cause)
+          .extracting(Meter::getCount)
+          .isEqualTo(1L);
+    }
+    assertThat(
+            meters.get(
+                MetricRegistry.name(
+                    EventListener.class, "connections-failed", "connection-refused")))
+        .extracting(Meter::getCount)
+        .isEqualTo(1L);
+    Timer failedDuration =
+        registry.getTimers().get(MetricRegistry.name(EventListener.class, "calls-failed-duration"));
+    assertThat(failedDuration.getCount()).isEqualTo(3);
+    assertThat(failedDuration.getSnapshot().getMax()).isGreaterThanOrEqualTo(100_000_000L);
+  }
+
+  @Test
+  public void callsOverTheConcurrencyLimitFailFast() throws Exception {
+    server.enqueue(new MockResponse().setHeadersDelay(500, TimeUnit.MILLISECONDS).setBody("slow"));
+    server.enqueue(new MockResponse().setBody("fast"));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .concurrencyLimit(1, 1)
+            .build();
+    Call slow = client.newCall(new Request.Builder().url(baseUrl).build());
+    CountDownLatch done = new CountDownLatch(1);
+    slow.enqueue(
+        new Callback() {
+          @Override
+          public void onFailure(Call call, IOException e) {
+            done.countDown();
+          }
+
+          @Override
+          public void onResponse(Call call, Response response) throws IOException {
+            response.close();
+            done.countDown();
+          }
+        });
+    // Once the server has the request, the slow call holds the only permit.
+    server.takeRequest();
+    try {
+      client.newCall(new Request.Builder().url(baseUrl).build()).execute();
+      fail();
+    } catch (ConcurrencyLimitExceededException expected) {
+    }
+    assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(client.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string())
+        .isEqualTo("fast");
+
+    String limit = MetricRegistry.name(OkHttpClient.class, "concurrency-limit");
+    assertThat(registry.meter(limit + "-rejected").getCount()).isEqualTo(1);
+    assertThat(registry.getGauges().get(limit).getValue()).isEqualTo(1);
+    assertThat(registry.getGauges().get(limit + "-in-flight").getValue()).isEqualTo(0);
+    assertThat(
+            registry
+                .meter(MetricRegistry.name(EventListener.class, "calls-failed", "rejected"))
+                .getCount())
+        .isEqualTo(1);
+    assertThat(server.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void concurrencyLimitsCanBeKeptPerHost() throws Exception {
+    server.enqueue(new MockResponse().setBody("one"));
+    HttpUrl baseUrl = server.url("/");
+
+    OkHttpClient client =
+        InstrumentedOkHttpClients.builder(registry)
+            .client(rawClient)
+            .concurrencyLimitPerHost(10, 100, 5)
+            .build();
+    client.newCall(new Request.Builder().url(baseUrl).build()).execute().body().string();
+
+    String host = MetricRegistry.name(OkHttpClient.class, "hosts", baseUrl.host());
+    assertThat(registry.getGauges().get(MetricRegistry.name(host, "concurrency-limit")).getValue())
+        .isEqualTo(10);
+    assertThat(registry.getMeters())
+        .containsKey(MetricRegistry.name(host, "concurrency-limit-rejected"));
+    assertThat(registry.getGauges())
+        .doesNotContainKey(MetricRegistry.name(OkHttpClient.class, "concurrency-limit"));
+  }
+
+  @Test
+  public void followUpsAreInstrumented() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(302).addHeader("Location: /redirected"));
+    server.enqueue(new MockResponse().setResponseCode(401));
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+    server.enqueue(new MockResponse().setBody("ok"));
+
+    rawClient =
+        rawClient
+            .newBuilder()
+            .authenticator(
+                (route, response) ->
+                    response.request().newBuilder().header("Authorization", "token").build())
+            .build();
+    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+
+    client.newCall(new Request.Builder().url(server.url("/")).build()).execute().body().string();
+
+    assertThat(server.getRequestCount()).isEqualTo(4);
+    Histogram attempts =
+        registry
+            .getHistograms()
+            .get(MetricRegistry.name(EventListener.class, "network-attempts-per-call"));
+    assertThat(attempts.getCount()).isEqualTo(1);
+    assertThat(attempts.getSnapshot().getMax()).isEqualTo(4);
+    for (String cause : Arrays.asList("redirect", "auth", "retry")) {
+      assertThat(
+              registry
+                  .getMeters()
+                  .get(MetricRegistry.name(EventListener.class, "follow-ups", cause))
+                  .getCount())
+          .as(cause)
+          .isEqualTo(1);
+    }
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "follow-ups", "other"))
+                .getCount())
+        .isEqualTo(0);
+
+    // The call acquired a connection for each request, but is counted by protocol once.
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "connections-acquired"))
+                .getCount())
+        .isGreaterThan(1);
+    assertThat(
+            registry
+                .getMeters()
+                .get(MetricRegistry.name(EventListener.class, "calls-protocols", "http_1_1"))
+                .getCount())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void webSocketsAreInstrumented() throws Exception {
+    server.enqueue(
+        new MockResponse()
+            .withWebSocketUpgrade(
+                new WebSocketListener() {
+                  @Override
+                  public void onMessage(WebSocket webSocket, String text) {
+                    webSocket.send(text);
+                  }
+
+                  @Override
+                  public void onMessage(WebSocket webSocket, ByteString bytes) {
+                    webSocket.send(bytes);
+                  }
+
+                  @Override
+                  public void onClosing(WebSocket webSocket, int code, String reason) {
+                    webSocket.close(code, reason);
+                  }
+                }));
+    InstrumentedOkHttpClient client = new InstrumentedOkHttpClient(registry, rawClient, null);
+    CountDownLatch echoed = new CountDownLatch(2);
+    CountDownLatch closed = new CountDownLatch(1);
+    List<WebSocket> seenByListener = new ArrayList<>();
+
+    WebSocket webSocket =
+        client.newWebSocket(
+            new Request.Builder().url(server.url("/")).build(),
+            new WebSocketListener() {
+              @Override
+              public void onMessage(WebSocket webSocket, String text) {
+                seenByListener.add(webSocket);
+                echoed.countDown();
+              }
+
+              @Override
+              public void onMessage(WebSocket webSocket, ByteString bytes) {
+                echoed.countDown();
+              }
+
+              @Override
+              public void onClosed(WebSocket webSocket, int code, String reason) {
+                closed.countDown();
+              }
+            });
+    webSocket.send("héllo");
+    webSocket.send(ByteString.of(new byte[3]));
+    assertThat(echoed.await(10, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(registry.getGauges().get(client.metricId("web-sockets-open")).getValue())
+        .isEqualTo(1);
+    assertThat(seenByListener).containsExactly(webSocket);
+
+    webSocket.close(1000, null);
+    assertThat(closed.await(10, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(registry.getGauges().get(client.metricId("web-sockets-open")).getValue())
+        .isEqualTo(0);
+    assertThat(registry.getMeters().get(client.metricId("web-sockets-opened")).getCount())
+        .isEqualTo(1);
+    assertThat(registry.getMeters().get(client.metricId("web-sockets-sent-text")).getCount())
+        .isEqualTo(1);
+    assertThat(registry.getMeters().get(client.metricId("web-sockets-received-binary")).getCount())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getHistograms()
+                .get(client.metricId("web-sockets-received-text-size"))
+                .getSnapshot()
+                .getMax())
+        .isEqualTo(6);
+    assertThat(
+            registry
+                .getHistograms()
+                .get(client.metricId("web-sockets-sent-binary-size"))
+                .getSnapshot()
+                .getMax())
+        .isEqualTo(3);
+    assertThat(registry.getMeters().get(client.metricId("web-sockets-closed.1000")).getCount())
+        .isEqualTo(1);
+    assertThat(registry.getMeters().get(client.metricId("web-sockets-failed")).getCount())
+        .isEqualTo(0);
+    assertThat(registry.getTimers().get(client.metricId("web-sockets-duration")).getCount())
+        .isEqualTo(1);
+  }
+
   @Test
   public void providedNameUsedInMetricId() {
     String prefix = "custom";
@@ -78,7 +78,9 @@ public final class InstrumentedOkHttpClientsTest {
     assertThat(clientA.followRedirects()).isEqualTo(clientB.followRedirects());
     assertThat(clientA.followSslRedirects()).isEqualTo(clientB.followSslRedirects());
     assertThat(clientA.hostnameVerifier()).isEqualTo(clientB.hostnameVerifier());
-    assertThat(clientA.interceptors().size()).isEqualTo(clientB.interceptors().size());
+    // The instrumented client adds application interceptors to time dispatcher queueing and to
+    // count responses by status class.
+    assertThat(clientA.interceptors().size()).isEqualTo(clientB.interceptors().size() + 2);
     assertThat(clientA.pingIntervalMillis()).isEqualTo(clientB.pingIntervalMillis());
     assertThat(clientA.protocols()).isEqualTo(clientB.protocols());
     assertThat(clientA.proxy()).isEqualTo(clientB.proxy());
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Ras Kasa Williams
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.raskasa.metrics.okhttp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Snapshot;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public final class StripedHistogramReservoirTest {
+  private final ManualClock clock = new ManualClock();
+  private final StripedHistogramReservoir reservoir =
+      new StripedHistogramReservoir(1, TimeUnit.MINUTES, clock);
+
+  @Test
+  public void emptySnapshot() {
+    Snapshot snapshot = reservoir.getSnapshot();
+
+    assertThat(snapshot.size()).isEqualTo(0);
+    assertThat(snapshot.getValues()).isEmpty();
+    assertThat(snapshot.getMin()).isEqualTo(0);
+    assertThat(snapshot.getMax()).isEqualTo(0);
+    assertThat(snapshot.getMean()).isEqualTo(0.0);
+    assertThat(snapshot.get99thPercentile()).isEqualTo(0.0);
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    for (long value = 0; value < 64; value++) {
+      assertThat(StripedHistogramReservoir.value(StripedHistogramReservoir.bucket(value)))
+          .isEqualTo(value);
+    }
+  }
+
+  @Test
+  public void largeValuesAreWithinOnePercent() {
+    for (long value = 64; value < (1L << 40); value = value * 3 / 2 + 7) {
+      long reported = StripedHistogramReservoir.value(StripedHistogramReservoir.bucket(value));
+      assertThat((double) reported).isCloseTo(value, within(value * 0.01));
+    }
+  }
+
+  @Test
+  public void outOfRangeValuesAreClamped() {
+    reservoir.update(-5);
+    reservoir.update(Long.MAX_VALUE);
+
+    Snapshot snapshot = reservoir.getSnapshot();
+    assertThat(snapshot.size()).isEqualTo(2);
+    assertThat(snapshot.getMin()).isEqualTo(0);
+    assertThat((double) snapshot.getMax()).isCloseTo(1L << 40, within((1L << 40) * 0.01));
+  }
+
+  @Test
+  public void percentilesOfUniformValues() {
+    for (long value = 1; value <= 100_000; value++) {
+      reservoir.update(value * 1_000);
+    }
+
+    Snapshot snapshot = reservoir.getSnapshot();
+    assertThat(snapshot.size()).isEqualTo(100_000);
+    assertThat(snapshot.getMedian()).isCloseTo(50_000_000, within(500_000.0));
+    assertThat(snapshot.get99thPercentile()).isCloseTo(99_000_000, within(990_000.0));
+    assertThat(snapshot.get999thPercentile()).isCloseTo(99_900_000, within(999_000.0));
+    assertThat(snapshot.getMean()).isCloseTo(50_000_500, within(500_000.0));
+    assertThat(snapshot.getValues()).isSorted();
+  }
+
+  @Test
+  public void concurrentUpdatesAreAllCounted() throws Exception {
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      Thread thread =
+          new Thread(
+              () -> {
+                for (int value = 0; value < 10_000; value++) {
+                  reservoir.update(value);
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(reservoir.size()).isEqualTo(80_000);
+  }
+
+  @Test
+  public void snapshotsCoverThePreviousAndCurrentWindows() {
+    reservoir.update(1);
+    clock.tick += TimeUnit.MINUTES.toNanos(1);
+    assertThat(reservoir.size()).isEqualTo(1);
+
+    reservoir.update(2);
+    assertThat(reservoir.size()).isEqualTo(2);
+
+    // The first value was recorded before the previous window started.
+    clock.tick += TimeUnit.MINUTES.toNanos(1);
+    assertThat(reservoir.getSnapshot().getValues()).containsExactly(2);
+
+    clock.tick += TimeUnit.MINUTES.toNanos(1);
+    assertThat(reservoir.size()).isEqualTo(0);
+  }
+
+  static final class ManualClock extends Clock {
+    long tick;
+
+    @Override
+    public long getTick() {
+      return tick;
+    }
+  }
+}